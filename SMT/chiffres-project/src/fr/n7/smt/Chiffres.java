@@ -18,18 +18,118 @@
 
 package fr.n7.smt;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import com.microsoft.z3.*;
+import com.microsoft.z3.enumerations.Z3_decl_kind;
+import com.microsoft.z3.enumerations.Z3_lbool;
 
 /**
  * Classe qui implémente l'algorithme de BMC pour la partie "chiffres"
  * du jeu "des chiffres et des lettres".
  */
-public class Chiffres {
+public class Chiffres implements AutoCloseable {
+
+    /** Encodage de la pile dans les états du système de transition. */
+    public enum StackEncoding {
+        /** Tableau Int -> bitvector et indice entier de dessus de pile. */
+        ARRAY,
+
+        /**
+         * Une variable bitvector par case de pile et un pointeur de pile
+         * bitvector de petite taille, sans théorie des tableaux ni
+         * arithmétique entière.
+         */
+        FLAT
+    }
+
+    /** Encodage du choix de l'action à chaque pas de calcul. */
+    public enum ActionEncoding {
+        /**
+         * Un booléen par action (une par constante plus quatre
+         * opérateurs) et une contrainte exactlyOne quadratique.
+         */
+        ONE_HOT,
+
+        /**
+         * Un unique bitvector par pas dont la valeur est le code de
+         * l'action choisie.
+         */
+        SELECTOR
+    }
+
+    /** Encodage des programmes cherchés par solveResult. */
+    public enum ProgramEncoding {
+        /**
+         * Automate à pile déroulé pas à pas (BMC) : un état de pile
+         * par pas et une relation de transition par action.
+         */
+        STACK,
+
+        /**
+         * Arbre d'expression borné, sans pile : un noeud par action du
+         * programme, numérotés en ordre postfixe, dont chacun choisit
+         * une constante ou un opérateur et dont la valeur est définie à
+         * partir de celles de ses fils (voir treeFormula).
+         */
+        TREE
+    }
+
+    /** Arithmétique des valeurs de la pile. */
+    public enum Arithmetic {
+        /**
+         * Bitvectors signés de bvBits bits, les débordements n'étant
+         * interdits que si noOverflows est vrai.
+         */
+        BITVECTOR,
+
+        /**
+         * Entiers mathématiques non bornés (arithmétique linéaire et non
+         * linéaire entière). Les valeurs restent positives ou nulles : une
+         * soustraction n'est possible que si son résultat l'est, et la
+         * division est la division entière. bvBits et noOverflows sont
+         * alors ignorés.
+         */
+        INTEGER
+    }
+
+    /**
+     * Codes des actions opérateurs. Le code d'une action push est
+     * l'indice de la constante poussée, celui d'un opérateur est
+     * nums.length + MUL, DIV, ADD ou SUB.
+     */
+    static final int MUL     = 0;
+    static final int DIV     = 1;
+    static final int ADD     = 2;
+    static final int SUB     = 3;
+    static final int NOF_OPS = 4;
 
     /**
      * Contexte utilisé par l'instance Chiffres pour créer les formules,
@@ -37,6 +137,9 @@ public class Chiffres {
      */
     private Context context;
 
+    /** Vrai si le contexte a été créé par l'instance, et lui appartient. */
+    private boolean ownsContext;
+
     /** Cache de constantes booléennes, indicé par leur nom. */
     private HashMap<String, BoolExpr> boolCache = new HashMap<>();
 
@@ -64,6 +167,9 @@ public class Chiffres {
     /** Sorte des entiers mathématiques. */
     private Sort intSort;
 
+    /** Arithmétique des valeurs de la pile (BITVECTOR par défaut). */
+    private Arithmetic arithmetic = Arithmetic.BITVECTOR;
+
     /** Constantes numériques pour le calcul du système de transition. */
     private int[] nums;
 
@@ -78,11 +184,209 @@ public class Chiffres {
     private BigInteger maxBvRange;
     private BigInteger minBvRange;
 
+    /**
+     * Nombre de profondeurs de BMC vérifiées simultanément par la
+     * résolution exacte (1 : exploration séquentielle incrémentale).
+     */
+    private int nofThreads = 1;
+
+    /** Modèle trouvé par checkDepth lorsque la profondeur est SAT. */
+    private Model depthModel;
+
+    /** Status de la profondeur vérifiée par runDepth. */
+    private Status depthStatus;
+
+    /** Affichage du programme trouvé par runDepth, vide sinon. */
+    private String depthOutput = "";
+
+    /** Encodage des programmes : automate à pile ou arbre d'expression. */
+    private ProgramEncoding programEncoding = ProgramEncoding.STACK;
+
+    /** Encodage de la pile utilisé par les formules de transition. */
+    private StackEncoding stackEncoding = StackEncoding.ARRAY;
+
+    /**
+     * Nombre de cases de la pile dans l'encodage FLAT : la pile ne
+     * contient jamais plus d'éléments que de constantes.
+     */
+    private int stackCapacity;
+
+    /** Nombre de bits du pointeur de pile dans l'encodage FLAT. */
+    private int spBits;
+
+    /** Encodage du choix de l'action à chaque pas. */
+    private ActionEncoding actionEncoding = ActionEncoding.ONE_HOT;
+
+    /** Nombre de bits du sélecteur d'action dans l'encodage SELECTOR. */
+    private int actionBits;
+
+    /**
+     * Si vrai, ajoute à la relation de transition des contraintes de
+     * cassage de symétries pour les opérateurs commutatifs et
+     * associatifs, et interdit les opérations neutres x*1 et x/1.
+     */
+    private boolean symmetryBreaking = false;
+
+    /**
+     * Si vrai, applique les règles du jeu : une division doit tomber
+     * juste (reste nul) et une soustraction donner un résultat
+     * strictement positif.
+     */
+    private boolean gameRules = false;
+
+    /**
+     * Si vrai, interdit les opérations inutiles : multiplication ou
+     * division par 1, et soustraction ou division dont le résultat est
+     * égal à son second opérande (a - b = b, a / b = b), qui équivalent
+     * à abandonner a.
+     */
+    private boolean noIdentities = false;
+
+    /**
+     * Si vrai, la résolution exacte cherche d'abord un programme sur des
+     * bitvectors plus étroits que bvBits (voir solveAdaptive).
+     */
+    private boolean adaptiveWidth = false;
+
+    /**
+     * Si vrai, les transitions sont instanciées depuis un gabarit
+     * (voir instantiateTemplate) au lieu d'être reconstruites à chaque
+     * pas.
+     */
+    private boolean templateUnrolling = false;
+
+    /**
+     * Gabarit de transition (null tant qu'il n'est pas construit), ses
+     * constantes, et pour chacune son nom sans le numéro de pas et le
+     * décalage de son pas par rapport au pas instancié.
+     */
+    private BoolExpr template;
+    private Expr[]   templateVars;
+    private String[] templateNames;
+    private int[]    templateOffsets;
+
+    /** Déclarations des variables d'action de chaque pas (voir actionDecls). */
+    private ArrayList<FuncDecl[]> actionDecls = new ArrayList<>();
+
+    /** Largeur courante de la résolution en largeur adaptative. */
+    private int width;
+
+    /**
+     * Nombre de profondeurs les plus profondes (programmes utilisant
+     * toutes les constantes, puis toutes sauf une...) vérifiées en
+     * premier par solveScheduled.
+     */
+    private int skipAhead = 0;
+
+    /** Part du budget de solveScheduled réservée d'abord à la recherche exacte. */
+    private static final double EXACT_SHARE = 0.75;
+
+    /** Plus petite tranche accordée à une profondeur par solveScheduled, en ms. */
+    private static final long MIN_SLICE = 50;
+
+    /**
+     * Durée (ms) de la recherche locale (ChiffresSearch) lancée par
+     * solveApprox avant le solveur d'optimisation, 0 pour aucune : sa
+     * meilleure distance borne alors le critère.
+     */
+    private int localSeed = 0;
+
+    /**
+     * Largeur de la recherche en faisceau (ChiffresSearch.beam) lancée
+     * par solveApprox avant la recherche locale et le solveur
+     * d'optimisation, 0 pour aucune : comme pour localSeed, sa meilleure
+     * distance borne le critère.
+     */
+    private int beamSeed = 0;
+
+    /**
+     * Si vrai, les actions du programme d'amorce (beamSeed, localSeed)
+     * sont proposées au solveur d'optimisation comme contraintes
+     * souples, d'importance inférieure au critère (voir addHints).
+     */
+    private boolean phaseHints = false;
+
+    /** Actions du programme d'amorce de solveApprox, null si aucun. */
+    private int[] seedActions;
+
+    /**
+     * Si vrai, solveResult résout chaque profondeur forme par forme, en
+     * parallèle (voir solveShapes).
+     */
+    private boolean shapeSplit = false;
+
+    /**
+     * Si vrai, les transitions portent les invariants de hauteur de pile
+     * et de constantes utilisées (heightInvariant), chaque requête de
+     * profondeur borne les hauteurs intermédiaires (depthFormula), et
+     * seules les profondeurs paires, jusqu'à celle où toutes les
+     * constantes sont utilisées, sont vérifiées (voir skipDepth).
+     */
+    private boolean pruning = false;
+
+    /**
+     * Solveur incrémental de checkShape : état initial, transitions
+     * jusqu'au pas shapeSteps (chaque pas dans son scope) et, dans un
+     * dernier scope, état final.
+     */
+    private Solver shapeSolver;
+    private int    shapeSteps = -1;
+
+    /** Si vrai, les modèles trouvés sont affichés sur out. */
+    private boolean verbose = true;
+
+    /** Flux des traces de résolution (stdout, ou vide si silencieux). */
+    private PrintStream out = System.out;
+
+    /**
+     * Codes des actions du meilleur programme décodé pendant la
+     * résolution courante (null si aucun) et valeur qu'il calcule.
+     */
+    private int[] bestActions;
+    private long  bestValue;
+
+    /** Date (System.nanoTime) de la dernière amélioration de bestActions. */
+    private long improvedNanos;
+
+    /**
+     * Temps cumulés (ns) de construction des formules, de résolution
+     * et de décodage des modèles pendant la résolution courante.
+     */
+    private long encodeNanos;
+    private long solveNanos;
+    private long decodeNanos;
+
+    /** Nombre d'appels au solveur pendant la résolution courante. */
+    private int nofChecks;
+
+    /**
+     * Date limite (System.currentTimeMillis) de toute la résolution,
+     * 0 si aucune. Chaque appel au solveur est borné par le temps
+     * restant, et la résolution s'arrête une fois la date dépassée.
+     */
+    private long deadline = 0;
+
+    /** Cache des résultats consulté par solveResult, null si aucun. */
+    private ChiffresCache cache = null;
+
+    /** Table précalculée du jeu consultée avant le cache, null si aucune. */
+    private ChiffresTable table = null;
+
     /**
      * Initialise tous les attributs de la classe: paramètres utilisateur,
      * contexte, sortes.
      */
     public Chiffres(int[] _nums, int _target, int _bvBits, boolean _noOverflows) {
+        this(null, _nums, _target, _bvBits, _noOverflows);
+    }
+
+    /**
+     * Comme le constructeur précédent, mais crée les formules dans le
+     * contexte donné (si non null), qui reste la propriété de
+     * l'appelant : close ne le ferme pas. Un thread peut ainsi
+     * réutiliser son contexte pour plusieurs instances successives.
+     */
+    public Chiffres(Context _context, int[] _nums, int _target, int _bvBits, boolean _noOverflows) {
         nums = _nums;
         target = _target;
         bvBits = _bvBits;
@@ -90,12 +394,12 @@ public class Chiffres {
         minBvRange = new BigInteger("2").pow(bvBits - 1).negate();
         maxNofSteps = 2 * nums.length - 1;
         noOverflows = _noOverflows;
+        stackCapacity = Math.max(1, nums.length);
+        spBits = 32 - Integer.numberOfLeadingZeros(stackCapacity);
+        actionBits = 32 - Integer.numberOfLeadingZeros(nums.length + NOF_OPS);
 
-        HashMap<String, String> cfg = new HashMap<>();
-        cfg.put("model", "true");
-        cfg.put("proof", "true");
-
-        context = new Context(cfg);
+        ownsContext = _context == null;
+        context = ownsContext ? mkContext() : _context;
         intSort = context.mkIntSort();
         bvSort = context.mkBitVecSort(bvBits);
         bvArraySort = context.mkArraySort(intSort, bvSort);
@@ -105,6 +409,261 @@ public class Chiffres {
         arrayCache = new HashMap<>();
     }
 
+    /** Crée un contexte Z3 configuré pour Chiffres. */
+    public static Context mkContext() {
+        HashMap<String, String> cfg = new HashMap<>();
+        cfg.put("model", "true");
+        cfg.put("proof", "true");
+
+        return new Context(cfg);
+    }
+
+    /**
+     * Fixe la date limite (System.currentTimeMillis) de toute la
+     * résolution, 0 pour aucune. Elle s'ajoute au timeout par appel au
+     * solveur passé à solve.
+     */
+    public void setDeadline(long _deadline) {
+        deadline = _deadline;
+    }
+
+    /**
+     * Fixe le cache consulté avant toute résolution par solveResult, et
+     * complété par ses résultats définitifs. null pour ne pas en utiliser.
+     */
+    public void setCache(ChiffresCache _cache) {
+        cache = _cache;
+    }
+
+    /**
+     * Fixe la table précalculée consultée par solveResult et
+     * solveScheduled avant le cache et avant toute construction de
+     * formule, avec les règles du jeu seulement (voir setGameRules).
+     * null pour ne pas en utiliser.
+     */
+    public void setTable(ChiffresTable _table) {
+        table = _table;
+    }
+
+    /**
+     * Fixe le nombre de profondeurs de BMC vérifiées en parallèle par la
+     * résolution exacte, chacune sur son propre contexte Z3.
+     */
+    public void setParallelism(int _nofThreads) {
+        nofThreads = Math.max(1, _nofThreads);
+    }
+
+    /**
+     * Choisit l'encodage des programmes (STACK par défaut). En encodage
+     * TREE, solveResult résout par solveTree puis solveTreeApprox ; le
+     * choix des actions y est toujours ONE_HOT, et la résolution
+     * parallèle, par formes ou à largeur adaptative ne s'applique pas.
+     */
+    public void setProgramEncoding(ProgramEncoding _programEncoding) {
+        programEncoding = _programEncoding;
+    }
+
+    /** Choisit l'encodage de la pile (ARRAY par défaut). */
+    public void setStackEncoding(StackEncoding _stackEncoding) {
+        stackEncoding = _stackEncoding;
+    }
+
+    /**
+     * Choisit l'arithmétique des valeurs de la pile (BITVECTOR par
+     * défaut), avant toute résolution.
+     */
+    public void setArithmetic(Arithmetic _arithmetic) {
+        arithmetic = _arithmetic;
+    }
+
+    /** Choisit l'encodage du choix des actions (ONE_HOT par défaut). */
+    public void setActionEncoding(ActionEncoding _actionEncoding) {
+        actionEncoding = _actionEncoding;
+    }
+
+    /**
+     * Active ou désactive le cassage de symétries des opérateurs (voir
+     * commutativeSymmetryFormula), désactivé par défaut.
+     */
+    public void setSymmetryBreaking(boolean _symmetryBreaking) {
+        symmetryBreaking = _symmetryBreaking;
+    }
+
+    /** Active ou désactive les règles du jeu (voir gameRules), désactivées par défaut. */
+    public void setGameRules(boolean _gameRules) {
+        gameRules = _gameRules;
+    }
+
+    /**
+     * Active ou désactive l'interdiction des opérations inutiles (voir
+     * noIdentities), désactivée par défaut.
+     */
+    public void setNoIdentities(boolean _noIdentities) {
+        noIdentities = _noIdentities;
+    }
+
+    /**
+     * Active ou désactive la largeur adaptative (voir solveAdaptive),
+     * désactivée par défaut. bvBits est alors la largeur maximale.
+     */
+    public void setAdaptiveWidth(boolean _adaptiveWidth) {
+        adaptiveWidth = _adaptiveWidth;
+    }
+
+    /** Largeur atteinte par la dernière résolution en largeur adaptative. */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Fixe le nombre de profondeurs les plus profondes vérifiées en
+     * premier par solveScheduled (0 par défaut).
+     */
+    public void setSkipAhead(int _skipAhead) {
+        skipAhead = _skipAhead;
+    }
+
+    /**
+     * Active ou désactive le déroulage par gabarit (voir
+     * instantiateTemplate), désactivé par défaut. Le gabarit est
+     * construit à la première transition, avec les options alors
+     * choisies : les autres options doivent être fixées avant.
+     */
+    public void setTemplateUnrolling(boolean _templateUnrolling) {
+        templateUnrolling = _templateUnrolling;
+        template          = null;
+    }
+
+    /**
+     * Fixe la durée (ms) de la recherche locale qui précède solveApprox
+     * et borne son critère, 0 (par défaut) pour aucune.
+     */
+    public void setLocalSeed(int _localSeed) {
+        localSeed = _localSeed;
+    }
+
+    /**
+     * Fixe la largeur de la recherche en faisceau qui précède
+     * solveApprox et borne son critère, 0 (par défaut) pour aucune.
+     */
+    public void setBeamSeed(int _beamSeed) {
+        beamSeed = _beamSeed;
+    }
+
+    /**
+     * Active ou désactive les indications de phase tirées du programme
+     * d'amorce (voir phaseHints). Désactivées par défaut.
+     */
+    public void setPhaseHints(boolean _phaseHints) {
+        phaseHints = _phaseHints;
+    }
+
+    /**
+     * Date (System.nanoTime) à laquelle le meilleur programme de la
+     * dernière résolution a été trouvé.
+     */
+    public long getImprovedNanos() {
+        return improvedNanos;
+    }
+
+    /**
+     * Active ou désactive la résolution par formes (voir solveShapes)
+     * dans solveResult, sur setParallelism threads. Désactivée par
+     * défaut.
+     */
+    public void setShapeSplit(boolean _shapeSplit) {
+        shapeSplit = _shapeSplit;
+    }
+
+    /**
+     * Active ou désactive les invariants d'élagage du BMC (voir
+     * pruning). Désactivés par défaut.
+     */
+    public void setPruning(boolean _pruning) {
+        pruning = _pruning;
+    }
+
+    /** Nombre d'appels au solveur de la dernière résolution. */
+    public int getNofChecks() {
+        return nofChecks;
+    }
+
+    /** Active ou désactive les traces de résolution sur stdout. */
+    public void setVerbose(boolean _verbose) {
+        verbose = _verbose;
+        out     = verbose ? System.out : new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {}
+            });
+    }
+
+    /**
+     * Crée une nouvelle instance, avec son propre contexte, résolvant le
+     * même problème avec les mêmes options.
+     */
+    private Chiffres fork() {
+        return fork(bvBits);
+    }
+
+    /** Comme fork, mais sur des bitvectors de taille _bvBits. */
+    private Chiffres fork(int _bvBits) {
+        Chiffres copy = new Chiffres(nums, target, _bvBits, noOverflows);
+
+        copy.programEncoding   = programEncoding;
+        copy.stackEncoding     = stackEncoding;
+        copy.actionEncoding    = actionEncoding;
+        copy.symmetryBreaking  = symmetryBreaking;
+        copy.gameRules         = gameRules;
+        copy.noIdentities      = noIdentities;
+        copy.adaptiveWidth     = adaptiveWidth;
+        copy.skipAhead         = skipAhead;
+        copy.templateUnrolling = templateUnrolling;
+        copy.localSeed         = localSeed;
+        copy.beamSeed          = beamSeed;
+        copy.phaseHints        = phaseHints;
+        copy.shapeSplit        = shapeSplit;
+        copy.pruning           = pruning;
+        copy.arithmetic        = arithmetic;
+        copy.deadline          = deadline;
+        copy.verbose           = verbose;
+        copy.out               = out;
+
+        return copy;
+    }
+
+    /** Libère le contexte Z3 de l'instance, s'il lui appartient. */
+    @Override
+    public void close() {
+        if (ownsContext) {
+            context.close();
+        }
+    }
+
+    /** Vrai ssi la date limite de la résolution est dépassée. */
+    private boolean deadlineReached() {
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Paramètres d'un appel au solveur : timeout (ms, 0 pour aucun),
+     * réduit au temps restant avant la date limite.
+     */
+    private Params timeoutParams(int timeout) {
+        long   limit = timeout;
+        Params p     = context.mkParams();
+
+        if (deadline > 0) {
+            long remaining = Math.max(1, deadline - System.currentTimeMillis());
+            limit = limit > 0 ? Math.min(limit, remaining) : remaining;
+        }
+
+        if (limit > 0) {
+            p.add("timeout", (int) Math.min(limit, Integer.MAX_VALUE));
+        }
+
+        return p;
+    }
+
     /**
      * Retourne la constante du cache si présente, ou bien en crée une
      * nouvelle avec le nom donné si absente.
@@ -125,10 +684,18 @@ public class Chiffres {
      * nouvelle avec le nom donné si absente.
      */
     private BitVecExpr bvConst(String name) {
+        return bvConst(name, bvBits);
+    }
+
+    /**
+     * Retourne la constante du cache si présente, ou bien en crée une
+     * nouvelle de taille bits avec le nom donné si absente.
+     */
+    private BitVecExpr bvConst(String name, int bits) {
         BitVecExpr res = bvCache.get(name);
 
         if (res == null) {
-            res = context.mkBVConst(name, bvBits);
+            res = context.mkBVConst(name, bits);
             bvCache.put(name, res);
         }
 
@@ -158,7 +725,7 @@ public class Chiffres {
         ArrayExpr res = arrayCache.get(name);
 
         if (res == null) {
-            res = context.mkArrayConst(name, intSort, bvSort);
+            res = context.mkArrayConst(name, intSort, valueSort());
             arrayCache.put(name, res);
         }
 
@@ -206,56 +773,182 @@ public class Chiffres {
         }
     }
 
-    /**
-     * Trigger de l'action "pousser un numéral sur la pile" pour le pas
-     * d'execution "step" du calcul.
-     */
-    private BoolExpr pushNumVar(int step, int num) {
-        return boolConst("push_" + num + "@" + step);
+    /** Sorte des valeurs de la pile. */
+    private Sort valueSort() {
+        return arithmetic == Arithmetic.INTEGER ? intSort : bvSort;
     }
 
     /**
-     * Trigger de l'action "additionner les deux éléments du dessus de
-     * pile et pousser le resultat en dessus de pile" pour le pas
-     * d'execution "step" du calcul.
+     * Retourne la constante valeur de la pile du cache si présente, ou
+     * bien en crée une nouvelle avec le nom donné si absente.
      */
-    private BoolExpr addVar(int step) {
-        return boolConst("add@" + step);
+    private Expr valueConst(String name) {
+        return arithmetic == Arithmetic.INTEGER ? intConst(name) : bvConst(name);
     }
 
-    /**
-     * Trigger de l'action "soustraire les deux éléments du dessus de
-     * pile et pousser le resultat en dessus de pile" pour le pas
-     * d'execution "step" du calcul.
-     */
-    private BoolExpr subVar(int step) {
-        return boolConst("sub@" + step);
+    /** Convertit un int java en valeur symbolique de la pile. */
+    private Expr num(int num) {
+        return arithmetic == Arithmetic.INTEGER ? context.mkInt(num) : toBvNum(num);
     }
 
-    /**
-     * Trigger de l'action "multiplier les deux éléments du dessus de
-     * pile et pousser le resultat en dessus de pile" pour le pas
-     * d'execution "step" du calcul.
-     */
-    private BoolExpr mulVar(int step) {
-        return boolConst("mul@" + step);
+    /** Vrai ssi les préconditions interdisant les débordements s'appliquent. */
+    private boolean checkOverflows() {
+        return noOverflows && arithmetic == Arithmetic.BITVECTOR;
     }
 
-    /**
-     * Trigger de l'action "diviser les deux éléments du dessus de
-     * pile et pousser le resultat en dessus de pile" pour le pas
-     * d'execution "step" du calcul.
-     */
-    private BoolExpr divVar(int step) {
-        return boolConst("div@" + step);
-    }
+    /** Formule vraie ssi a <= b (comparaison signée pour les bitvectors). */
+    private BoolExpr le(Expr a, Expr b) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            return context.mkLe((ArithExpr) a, (ArithExpr) b);
+        }
 
-    /** Variable d'état représentant la pile au pas d'exécution "step". */
-    private ArrayExpr stackStateVar(int step) {
-        return arrayConst("stack@" + step);
+        return context.mkBVSLE((BitVecExpr) a, (BitVecExpr) b);
     }
 
-    /**
+    /** Formule vraie ssi a < b (comparaison signée pour les bitvectors). */
+    private BoolExpr lt(Expr a, Expr b) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            return context.mkLt((ArithExpr) a, (ArithExpr) b);
+        }
+
+        return context.mkBVSLT((BitVecExpr) a, (BitVecExpr) b);
+    }
+
+    /** Résultat de l'opérateur op (MUL, DIV, ADD ou SUB) appliqué à e1 et e2. */
+    private Expr apply(int op, Expr e1, Expr e2) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            ArithExpr a = (ArithExpr) e1;
+            ArithExpr b = (ArithExpr) e2;
+
+            switch (op) {
+            case MUL: return context.mkMul(a, b);
+            case DIV: return context.mkDiv(a, b);
+            case ADD: return context.mkAdd(a, b);
+            default:  return context.mkSub(a, b);
+            }
+        }
+
+        BitVecExpr a = (BitVecExpr) e1;
+        BitVecExpr b = (BitVecExpr) e2;
+
+        switch (op) {
+        case MUL: return context.mkBVMul(a, b);
+        case DIV: return context.mkBVSDiv(a, b);
+        case ADD: return context.mkBVAdd(a, b);
+        default:  return context.mkBVSub(a, b);
+        }
+    }
+
+    /** Reste de la division de e1 par e2 (signe de e1 pour les bitvectors). */
+    private Expr remainder(Expr e1, Expr e2) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            return context.mkMod((IntExpr) e1, (IntExpr) e2);
+        }
+
+        return context.mkBVSRem((BitVecExpr) e1, (BitVecExpr) e2);
+    }
+
+    /**
+     * Sélecteur d'action au pas d'exécution "step" (encodage SELECTOR) :
+     * sa valeur est le code de l'action choisie.
+     */
+    private BitVecExpr selectorVar(int step) {
+        return bvConst("action@" + step, actionBits);
+    }
+
+    /**
+     * Trigger de l'action de code "code" au pas "step" : la variable
+     * booléenne name@step en encodage ONE_HOT, l'égalité du sélecteur
+     * d'action avec code en encodage SELECTOR.
+     */
+    private BoolExpr actionTrigger(int step, int code, String name) {
+        if (actionEncoding == ActionEncoding.SELECTOR) {
+            return context.mkEq(selectorVar(step), context.mkBV(code, actionBits));
+        }
+
+        return boolConst(name + "@" + step);
+    }
+
+    /**
+     * Formule vraie ssi exactement une action est choisie au pas
+     * "step". En encodage SELECTOR, il suffit que le sélecteur désigne
+     * une action existante.
+     */
+    private BoolExpr actionChoiceFormula(int step) {
+        if (actionEncoding == ActionEncoding.SELECTOR) {
+            return context.mkBVULT(selectorVar(step),
+                                   context.mkBV(nums.length + NOF_OPS, actionBits));
+        }
+
+        return exactlyOne(allActions(step));
+    }
+
+    /** Trigger de l'action de code "code" (voir MUL) au pas "step". */
+    private BoolExpr actionVar(int step, int code) {
+        if (code < nums.length) {
+            return pushNumVar(step, code);
+        }
+
+        switch (code - nums.length) {
+        case MUL: return mulVar(step);
+        case DIV: return divVar(step);
+        case ADD: return addVar(step);
+        default:  return subVar(step);
+        }
+    }
+
+    /**
+     * Trigger de l'action "pousser la constante nums[i] sur la pile"
+     * pour le pas d'execution "step" du calcul. Les actions sont
+     * indicées par position : deux constantes de même valeur ont
+     * chacune leur trigger.
+     */
+    private BoolExpr pushNumVar(int step, int i) {
+        return actionTrigger(step, i, "push_" + i);
+    }
+
+    /**
+     * Trigger de l'action "additionner les deux éléments du dessus de
+     * pile et pousser le resultat en dessus de pile" pour le pas
+     * d'execution "step" du calcul.
+     */
+    private BoolExpr addVar(int step) {
+        return actionTrigger(step, nums.length + ADD, "add");
+    }
+
+    /**
+     * Trigger de l'action "soustraire les deux éléments du dessus de
+     * pile et pousser le resultat en dessus de pile" pour le pas
+     * d'execution "step" du calcul.
+     */
+    private BoolExpr subVar(int step) {
+        return actionTrigger(step, nums.length + SUB, "sub");
+    }
+
+    /**
+     * Trigger de l'action "multiplier les deux éléments du dessus de
+     * pile et pousser le resultat en dessus de pile" pour le pas
+     * d'execution "step" du calcul.
+     */
+    private BoolExpr mulVar(int step) {
+        return actionTrigger(step, nums.length + MUL, "mul");
+    }
+
+    /**
+     * Trigger de l'action "diviser les deux éléments du dessus de
+     * pile et pousser le resultat en dessus de pile" pour le pas
+     * d'execution "step" du calcul.
+     */
+    private BoolExpr divVar(int step) {
+        return actionTrigger(step, nums.length + DIV, "div");
+    }
+
+    /** Variable d'état représentant la pile au pas d'exécution "step". */
+    private ArrayExpr stackStateVar(int step) {
+        return arrayConst("stack@" + step);
+    }
+
+    /**
      * Variable d'état représentant l'indice de dessus de pile au pas
      * d'exécution "step".
      */
@@ -264,27 +957,182 @@ public class Chiffres {
     }
 
     /**
-     * Formule de transition, vraie ssi l'état au pas step et au pas
-     * step + 1 sont liés par une action "push(num)".
+     * Variable d'état vraie ssi la constante nums[i] a été poussée sur
+     * la pile avant le pas d'exécution "step".
+     */
+    private BoolExpr usedStateVar(int step, int i) {
+        return boolConst("used_" + i + "@" + step);
+    }
+
+    /**
+     * Variable d'état représentant la case k de la pile au pas
+     * d'exécution "step" (encodage FLAT).
+     */
+    private Expr slotStateVar(int step, int k) {
+        return valueConst("slot_" + k + "@" + step);
+    }
+
+    /**
+     * Variable d'état représentant le nombre d'éléments de la pile au
+     * pas d'exécution "step" (encodage FLAT).
+     */
+    private BitVecExpr spStateVar(int step) {
+        return bvConst("sp@" + step, spBits);
+    }
+
+    /**
+     * Valeur écrite dans la pile par l'action du pas "step", à la case
+     * sp@(step + 1) - 1 (encodage FLAT).
+     */
+    private Expr writeVar(int step) {
+        return valueConst("write@" + step);
+    }
+
+    /** Valeur symbolique du pointeur de pile (encodage FLAT). */
+    private BitVecNum spNum(int k) {
+        return context.mkBV(k, spBits);
+    }
+
+    /**
+     * Élément de la pile au pas "step", à la profondeur "depth" sous le
+     * dessus de pile (0 pour le dessus de pile).
+     */
+    private Expr stackElem(int step, int depth) {
+        if (stackEncoding == StackEncoding.FLAT) {
+            BitVecExpr sp  = spStateVar(step);
+            Expr       res = slotStateVar(step, 0);
+
+            for (int k = 1; k + depth < stackCapacity; k++) {
+                res = context.mkITE(context.mkEq(sp, spNum(k + depth + 1)),
+                                    slotStateVar(step, k), res);
+            }
+
+            return res;
+        }
+
+        ArithExpr idxM = context.mkSub(idxStateVar(step), context.mkInt(depth + 1));
+        return context.mkSelect(stackStateVar(step), idxM);
+    }
+
+    /** Formule vraie ssi la pile contient n éléments au pas "step". */
+    private BoolExpr stackSizeIs(int step, int n) {
+        if (stackEncoding == StackEncoding.FLAT) {
+            return n <= stackCapacity
+                ? context.mkEq(spStateVar(step), spNum(n))
+                : context.mkFalse();
+        }
+
+        return context.mkEq(idxStateVar(step), context.mkInt(n));
+    }
+
+    /**
+     * Formule vraie ssi l'état au pas step + 1 est obtenu en poussant
+     * value sur la pile du pas step.
+     */
+    private BoolExpr pushFormula(int step, Expr value) {
+        if (stackEncoding == StackEncoding.FLAT) {
+            BitVecExpr sp = spStateVar(step);
+
+            return context.mkAnd(
+                context.mkBVULT(sp, spNum(stackCapacity)),
+                context.mkEq(spStateVar(step + 1), context.mkBVAdd(sp, spNum(1))),
+                context.mkEq(writeVar(step), value));
+        }
+
+        ArrayExpr stack     = stackStateVar(step);
+        IntExpr   idx       = idxStateVar(step);
+        ArrayExpr nextStack = stackStateVar(step + 1);
+        IntExpr   nextIdx   = idxStateVar(step + 1);
+        BoolExpr  idxOk     = context.mkEq(nextIdx, context.mkAdd(idx, context.mkInt(1)));
+        BoolExpr  stackOk   = context.mkEq(nextStack, context.mkStore(stack, idx, value));
+
+        return context.mkAnd(idxOk, stackOk);
+    }
+
+    /**
+     * Formule vraie ssi l'état au pas step + 1 est obtenu en remplaçant
+     * les deux éléments du dessus de la pile du pas step par value.
      */
-    private BoolExpr pushNumFormula(int step, int num) {
+    private BoolExpr popTwoPushFormula(int step, Expr value) {
+        if (stackEncoding == StackEncoding.FLAT) {
+            BitVecExpr sp = spStateVar(step);
+
+            return context.mkAnd(
+                context.mkBVUGE(sp, spNum(2)),
+                context.mkEq(spStateVar(step + 1), context.mkBVSub(sp, spNum(1))),
+                context.mkEq(writeVar(step), value));
+        }
+
         ArrayExpr stack     = stackStateVar(step);
         IntExpr   idx       = idxStateVar(step);
         ArrayExpr nextStack = stackStateVar(step + 1);
         IntExpr   nextIdx   = idxStateVar(step + 1);
-        BoolExpr  actionVar = pushNumVar(step, num);
-    
-        // If this action has already occurred in the past, we forbid it at this step.
-        BoolExpr atMostOnce = context.mkTrue();
-    
-        for (int i = 0; i < step; i++) {
-            atMostOnce = context.mkAnd(atMostOnce, context.mkNot(pushNumVar(i, num)));
+        ArithExpr idxM1     = context.mkSub(idx, context.mkInt(1));
+        ArithExpr idxM2     = context.mkSub(idx, context.mkInt(2));
+        BoolExpr  twoElems  = context.mkGe(idx, context.mkInt(2));
+        BoolExpr  idxOk     = context.mkEq(nextIdx, idxM1);
+        BoolExpr  stackOk   = context.mkEq(nextStack, context.mkStore(stack, idxM2, value));
+
+        return context.mkAnd(twoElems, idxOk, stackOk);
+    }
+
+    /**
+     * Formule de mise à jour des cases de la pile entre les pas step et
+     * step + 1 (encodage FLAT) : seule la case sp@(step + 1) - 1 reçoit
+     * la valeur écrite par l'action, les autres sont inchangées.
+     */
+    private BoolExpr flatFrameFormula(int step) {
+        BitVecExpr nextSp = spStateVar(step + 1);
+        BoolExpr[] cells  = new BoolExpr[stackCapacity];
+
+        for (int k = 0; k < stackCapacity; k++) {
+            cells[k] = context.mkEq(slotStateVar(step + 1, k),
+                                    context.mkITE(context.mkEq(nextSp, spNum(k + 1)),
+                                                  writeVar(step), slotStateVar(step, k)));
         }
+
+        return context.mkAnd(cells);
+    }
+
+    /**
+     * Formule de transition, vraie ssi l'état au pas step et au pas
+     * step + 1 sont liés par une action "push(nums[i])".
+     */
+    private BoolExpr pushNumFormula(int step, int i) {
+        BoolExpr  actionVar = pushNumVar(step, i);
     
-        BoolExpr idxOk = context.mkEq(nextIdx, context.mkAdd(idx, context.mkInt(1)));
-        BoolExpr stackOk = context.mkEq(nextStack, context.mkStore(stack, idx, toBvNum(num)));
+        // If this constant has already been pushed in the past, we forbid it at this step.
+        BoolExpr atMostOnce = context.mkNot(usedStateVar(step, i));
+
+        // Identical values are interchangeable: they are pushed in index order.
+        BoolExpr inOrder = context.mkTrue();
+
+        for (int j = i - 1; j >= 0; j--) {
+            if (nums[j] == nums[i]) {
+                inOrder = usedStateVar(step, j);
+                break;
+            }
+        }
     
-        return context.mkImplies(actionVar, context.mkAnd(atMostOnce, idxOk, stackOk));
+        return context.mkImplies(actionVar, context.mkAnd(atMostOnce, inOrder, pushFormula(step, num(nums[i]))));
+    }
+
+    /**
+     * Formule de mise à jour des constantes utilisées entre les pas step
+     * et step + 1 : une constante est utilisée au pas step + 1 ssi elle
+     * l'était déjà au pas step ou si elle est poussée au pas step. La
+     * taille de l'encodage reste ainsi linéaire en la profondeur.
+     */
+    private BoolExpr usedFormula(int step) {
+        BoolExpr[] flags = new BoolExpr[nums.length];
+
+        for (int i = 0; i < nums.length; i++) {
+            flags[i] = context.mkEq(usedStateVar(step + 1, i),
+                                    context.mkOr(usedStateVar(step, i),
+                                                 pushNumVar(step, i)));
+        }
+
+        return context.mkAnd(flags);
     }
 
     private interface ActionVar {
@@ -299,7 +1147,7 @@ public class Chiffres {
          * Retourne l'expression du résultat de l'action au step donné
          * en fonction de e1 et e2, les deux valeurs du dessus de la pile.
          */
-        BitVecExpr get(int step, BitVecExpr e1, BitVecExpr e2);
+        Expr get(int step, Expr e1, Expr e2);
     }
 
     private interface ActionPrecondition {
@@ -308,35 +1156,54 @@ public class Chiffres {
          * donné en fonction de e1 et e2, les deux valeurs du dessus de
          * la pile.
          */
-        BoolExpr get(int step, BitVecExpr e1, BitVecExpr e2);
+        BoolExpr get(int step, Expr e1, Expr e2);
     }
 
 
     private BoolExpr actionFormula(int step, ActionVar actVar, ActionPrecondition precond, ActionResult opRes) {
-        ArrayExpr  stack     = stackStateVar(step);
-        IntExpr    idx       = idxStateVar(step);
-        ArrayExpr  nextStack = stackStateVar(step + 1);
-        IntExpr    nextIdx   = idxStateVar(step + 1);
-        ArithExpr  idxM1     = context.mkSub(idx, context.mkInt(1));
-        ArithExpr  idxM2     = context.mkSub(idx, context.mkInt(2));
-        BitVecExpr e1        = (BitVecExpr) context.mkSelect(stack, idxM1);
-        BitVecExpr e2        = (BitVecExpr) context.mkSelect(stack, idxM2);
-        BoolExpr   twoElems  = context.mkGe(idx, context.mkInt(2));
-        ArrayExpr  stackRes  = context.mkStore(stack, idxM2, opRes.get(step, e1, e2));
-        BoolExpr   idxOk     = context.mkEq(nextIdx, idxM1);
-        BoolExpr   stackOk   = context.mkEq(nextStack, stackRes);
-        BoolExpr   postCond  = context.mkAnd(idxOk, stackOk);
+        Expr     e1       = stackElem(step, 0);
+        Expr     e2       = stackElem(step, 1);
+        BoolExpr postCond = popTwoPushFormula(step, opRes.get(step, e1, e2));
     
         return context.mkImplies(
             actVar.get(step),
             context.mkAnd(
-                twoElems,
                 precond.get(step, e1, e2),
                 postCond
                 )
             );
     }
 
+    /**
+     * Contraintes de cassage de symétries d'un opérateur commutatif et
+     * associatif au pas "step", vraies si l'option est désactivée :
+     * - si les deux opérandes sont strictement positifs, le dessus de
+     *   pile e1 n'est pas plus grand que e2 ;
+     * - l'opérateur n'est pas appliqué deux fois de suite, les chaînes
+     *   associatives sont donc construites à gauche, "acc t op" où t
+     *   n'est pas lui-même un résultat de l'opérateur.
+     * Toute chaîne (t1 op ... op tn) peut être réécrite en un programme
+     * de même longueur respectant ces règles en triant les ti par ordre
+     * décroissant, la résolution reste donc complète sur les entiers.
+     * Avec des bitvectors, seules les solutions dont la réécriture
+     * déborde peuvent être perdues.
+     */
+    private BoolExpr commutativeSymmetryFormula(int step, ActionVar actVar,
+                                                Expr e1, Expr e2) {
+        if (! symmetryBreaking) {
+            return context.mkTrue();
+        }
+
+        Expr     zero     = num(0);
+        BoolExpr positive = context.mkAnd(lt(zero, e1), lt(zero, e2));
+        BoolExpr ordered  = context.mkImplies(positive, le(e1, e2));
+        BoolExpr leftDeep = step > 0
+            ? context.mkNot(actVar.get(step - 1))
+            : context.mkTrue();
+
+        return context.mkAnd(ordered, leftDeep);
+    }
+
     /**
      * Formule de transition, vraie ssi l'état au pas step et au pas
      * step + 1 sont liés par une action "addition".
@@ -345,14 +1212,17 @@ public class Chiffres {
         ActionVar actVar = this::addVar;
 
         ActionPrecondition precond = (s, e1, e2) -> {
-            if (noOverflows) {
-                return context.mkBVAddNoOverflow(e1, e2, true);
+            BoolExpr symmetry = commutativeSymmetryFormula(s, actVar, e1, e2);
+
+            if (checkOverflows()) {
+                return context.mkAnd(context.mkBVAddNoOverflow((BitVecExpr) e1, (BitVecExpr) e2, true),
+                                     symmetry);
             } else {
-                return context.mkTrue();
+                return symmetry;
             }
         };
     
-        ActionResult opRes = (s, e1, e2) -> context.mkBVAdd(e1, e2);
+        ActionResult opRes = (s, e1, e2) -> apply(ADD, e1, e2);
         return actionFormula(step, actVar, precond, opRes);
     }
 
@@ -364,16 +1234,29 @@ public class Chiffres {
         ActionVar actVar = this::subVar;
 
         ActionPrecondition precond = (s, e1, e2) -> {
-            if (noOverflows) {
+            BoolExpr rules = context.mkTrue();
+
+            if (gameRules) {
+                rules = lt(e2, e1);
+            } else if (arithmetic == Arithmetic.INTEGER) {
+                rules = le(e2, e1);
+            }
+
+            if (noIdentities) {
+                rules = context.mkAnd(rules, context.mkNot(context.mkEq(apply(SUB, e1, e2), e2)));
+            }
+
+            if (checkOverflows()) {
                 return context.mkAnd(
-                    context.mkBVSubNoOverflow(e1, e2),
-                    context.mkBVSubNoUnderflow(e1, e2, true));
+                    rules,
+                    context.mkBVSubNoOverflow((BitVecExpr) e1, (BitVecExpr) e2),
+                    context.mkBVSubNoUnderflow((BitVecExpr) e1, (BitVecExpr) e2, true));
             } else {
-                return context.mkTrue();
+                return rules;
             }
         };
     
-        ActionResult opRes = (s, e1, e2) -> context.mkBVSub(e1, e2);
+        ActionResult opRes = (s, e1, e2) -> apply(SUB, e1, e2);
         return actionFormula(step, actVar, precond, opRes);
     }
 
@@ -385,14 +1268,24 @@ public class Chiffres {
         ActionVar actVar = this::mulVar;
 
         ActionPrecondition precond = (s, e1, e2) -> {
-            if (noOverflows) {
-                return context.mkBVMulNoOverflow(e1, e2, true);
+            BoolExpr symmetry = commutativeSymmetryFormula(s, actVar, e1, e2);
+
+            if (symmetryBreaking || noIdentities) {
+                Expr one = num(1);
+                symmetry = context.mkAnd(symmetry,
+                                         context.mkNot(context.mkEq(e1, one)),
+                                         context.mkNot(context.mkEq(e2, one)));
+            }
+
+            if (checkOverflows()) {
+                return context.mkAnd(context.mkBVMulNoOverflow((BitVecExpr) e1, (BitVecExpr) e2, true),
+                                     symmetry);
             } else {
-                return context.mkTrue();
+                return symmetry;
             }
         };
     
-        ActionResult opRes = (s, e1, e2) -> context.mkBVMul(e1, e2);
+        ActionResult opRes = (s, e1, e2) -> apply(MUL, e1, e2);
         return actionFormula(step, actVar, precond, opRes);
     }
 
@@ -404,15 +1297,29 @@ public class Chiffres {
         ActionVar actVar = this::divVar;
 
         ActionPrecondition precond = (s, e1, e2) -> {
-            BoolExpr notZero = context.mkNot(context.mkEq(e2, toBvNum(0)));
-            if (noOverflows) {
-                return context.mkAnd(notZero, context.mkBVSDivNoOverflow(e1, e2));
+            BoolExpr divisorOk = context.mkNot(context.mkEq(e2, num(0)));
+
+            if (symmetryBreaking || noIdentities) {
+                divisorOk = context.mkAnd(divisorOk, context.mkNot(context.mkEq(e2, num(1))));
+            }
+
+            if (noIdentities) {
+                divisorOk = context.mkAnd(divisorOk, context.mkNot(context.mkEq(apply(DIV, e1, e2), e2)));
+            }
+
+            if (gameRules) {
+                divisorOk = context.mkAnd(divisorOk, context.mkEq(remainder(e1, e2), num(0)));
+            }
+
+            if (checkOverflows()) {
+                return context.mkAnd(divisorOk,
+                                     context.mkBVSDivNoOverflow((BitVecExpr) e1, (BitVecExpr) e2));
             } else {
-                return notZero;
+                return divisorOk;
             }
         };
     
-        ActionResult opRes = (s, e1, e2) -> context.mkBVSDiv(e1, e2);
+        ActionResult opRes = (s, e1, e2) -> apply(DIV, e1, e2);
         return actionFormula(step, actVar, precond, opRes);
     }
 
@@ -423,8 +1330,8 @@ public class Chiffres {
     private BoolExpr[] allActions(int step) {
         ArrayList<BoolExpr> arr = new ArrayList<>();
 
-        for (int num : nums) {
-            arr.add(pushNumVar(step, num));
+        for (int i = 0; i < nums.length; i++) {
+            arr.add(pushNumVar(step, i));
         }
 
         arr.add(mulVar(step));
@@ -437,272 +1344,2935 @@ public class Chiffres {
 
     /**
      * Formule vraie ssi les états aux pas step et step+1 sont liés par
-     * une transition d'action.
+     * une transition d'action. En déroulage par gabarit, les pas
+     * supérieurs à 0 sont obtenus par instantiateTemplate.
      */
     private BoolExpr transitionFormula(int step) {
-        ArrayList<BoolExpr> arr = new ArrayList<>();
+        BoolExpr transition = templateUnrolling && step > 0
+            ? instantiateTemplate(step)
+            : buildTransitionFormula(step);
 
-        for (int num : nums) {
-            arr.add(pushNumFormula(step, num));
-        }
-    
-        arr.add(mulFormula(step));
-        arr.add(divFormula(step));
-        arr.add(addFormula(step));
-        arr.add(subFormula(step));
-        arr.add(exactlyOne(allActions(step)));
-    
-        return context.mkAnd(arr.stream().toArray(BoolExpr[]::new));
+        return pruning ? context.mkAnd(transition, heightInvariant(step + 1)) : transition;
     }
 
     /**
-     * Formule vraie ssi la pile est dans son état initial (au pas 0,
-     * toutes les cellules à zéro et dessus de pile à zero).
+     * Formule vraie ssi, au pas k (k > 0), la pile contient h éléments,
+     * h de la parité de k et au plus maxHeight, et exactement (k + h) / 2
+     * constantes ont été utilisées : chaque poussée ajoute un élément,
+     * chaque opération en retire un, et il y a au plus nums.length
+     * poussées.
      */
-    private BoolExpr initialStateFormula() {
-        ArrayExpr stack = stackStateVar(0);
-        IntExpr   idx   = idxStateVar(0);
-    
-        return context.mkAnd(
-            context.mkEq(idx, context.mkInt(0)),
-            context.mkEq(stack, context.mkConstArray(intSort, toBvNum(0))));
+    private BoolExpr heightFormula(int k, int maxHeight) {
+        int[]               ones    = new int[nums.length];
+        BoolExpr[]          used    = new BoolExpr[nums.length];
+        ArrayList<BoolExpr> heights = new ArrayList<>();
+
+        for (int i = 0; i < nums.length; i++) {
+            ones[i] = 1;
+            used[i] = usedStateVar(k, i);
+        }
+
+        int top = Math.min(maxHeight, Math.min(k, 2 * nums.length - k));
+
+        for (int h = 2 - k % 2; h <= top; h += 2) {
+            heights.add(context.mkAnd(stackSizeIs(k, h),
+                                      context.mkPBEq(ones, used, (k + h) / 2)));
+        }
+
+        return context.mkOr(heights.toArray(new BoolExpr[0]));
     }
 
     /**
-     * Formule vraie ssi la pile ne contient qu'un élément qui est égal
-     * à la valeur cible au pas "step".
+     * Invariant redondant du pas k, vrai dans tout état atteignable :
+     * ajouté aux transitions en élagage (setPruning), il relie hauteur
+     * de pile et constantes utilisées sans passer par les actions.
      */
-    private BoolExpr finalStateFormula(int step) {
-        ArrayExpr  stack = stackStateVar(step);
-        IntExpr    idx   = idxStateVar(step);
-        ArithExpr  idxM1 = context.mkSub(idx, context.mkInt(1));
-        BitVecExpr e1    = (BitVecExpr) context.mkSelect(stack, idxM1);
-    
-        return context.mkAnd(
-            context.mkEq(idx, context.mkInt(1)),
-            context.mkEq(e1, toBvNum(target))
-            );
+    private BoolExpr heightInvariant(int k) {
+        return heightFormula(k, nums.length);
     }
 
     /**
-     * Algorithme de résolution exacte. Déroule une boucle de
-     * model-checking borné de la relation de transition depuis l'état
-     * initial sur au plus maxNofSteps. Pour chaque itération de
-     * model-checking, on ajoute une formule de transition pour le step
-     * suivant dans le solveur, on pousse la formule d'état final, on
-     * lance une résolution. Si le problème est SAT, on imprime la
-     * solution, si le problème est UNSAT, on retire la formule d'état
-     * final et on passe à l'itération suivante. Si le problème est
-     * UNKNOWN, on retourne le status UNKOWN. Si le problème est UNSAT
-     * pour toutes les itérations, on retourne le status UNSAT.
+     * Bornes des états intermédiaires d'un programme terminant au pas
+     * "state" : au pas k, la pile contient au plus state - k + 1
+     * éléments, chaque action restante en retirant au plus un.
      */
-    private Status solveExact(int timeout) {
-        Solver solver = context.mkSolver();
-        solver.add(initialStateFormula());
-    
-        if (timeout > 0) {
-            Params p = context.mkParams();
-            p.add("timeout", timeout);
-            solver.setParameters(p);
-    
-            System.out.println("\n\nsolveExact with timeout " + timeout);
-        } else {
-            System.out.println("\n\nsolveExact without timeout" );
-        }
-    
-        for (int step = 0; step <= maxNofSteps; step++) {
-            solver.add(transitionFormula(step));
-            solver.push();
-            solver.add(finalStateFormula(step + 1));
-            Status status = solver.check();
-    
-            switch (status) {
-            case UNKNOWN:
-                System.out.println("- Unknown :\n" + solver.getReasonUnknown());
-                return Status.UNKNOWN;
-    
-            case SATISFIABLE:
-                Model m = solver.getModel();
-                System.out.println("- SAT at step " + step);
-                printModel(m, step);
-                return Status.SATISFIABLE;
-    
-            case UNSATISFIABLE:
-                System.out.println("- UNSAT at step " + step);
-                solver.pop();
-                break;
-            }
+    private BoolExpr depthFormula(int state) {
+        BoolExpr[] bounds = new BoolExpr[state - 1];
+
+        for (int k = 1; k < state; k++) {
+            bounds[k - 1] = heightFormula(k, state - k + 1);
         }
-    
-        return Status.UNSATISFIABLE;
+
+        return context.mkAnd(bounds);
     }
 
     /**
-     * Formule vraie ssi la pile n'est pas dans son état final au pas
-     * "step".
+     * Requête de la profondeur state - 1 du BMC : état final au pas
+     * "state", avec en élagage les bornes de depthFormula.
      */
-    private BoolExpr finalStateApproxFormula(int step) {
-        return context.mkNot(finalStateFormula(step));
+    private BoolExpr finalQuery(int state) {
+        return pruning
+            ? context.mkAnd(finalStateFormula(state), depthFormula(state))
+            : finalStateFormula(state);
     }
 
     /**
-     * Critère d'optimisation, écart en valeur absolue entre la valeur
-     * du dessus de la pile et la valeur cible au pas "step".
+     * Vrai ssi, en élagage, la profondeur "step" ne peut pas aboutir à
+     * une pile d'un seul élément : un programme de p constantes compte
+     * 2p - 1 actions, seules les profondeurs paires sont donc vérifiées.
      */
-    private BitVecExpr finalStateApproxCriterion(int step) {
-        ArrayExpr  stack = stackStateVar(step);
-        IntExpr    idx   = idxStateVar(step);
-        ArithExpr  idxM1 = context.mkSub(idx, context.mkInt(1));
-        BitVecExpr e1    = (BitVecExpr) context.mkSelect(stack, idxM1);
-        BitVecExpr diff  = context.mkBVSub(toBvNum(target), e1);
-        
-        return (BitVecExpr) context.mkITE(context.mkBVSGE(diff, toBvNum(0)),
-                                          diff, context.mkBVNeg(diff));
+    private boolean skipDepth(int step) {
+        return pruning && step % 2 != 0;
     }
 
     /**
-     * Algorithme de résolution approchée par optimisation max-SMT. À
-     * chaque étape de BMC, on minimise la distance à la cible. Le
-     * solveur d'optimisation n'est pas incrémental donc push et pop ne
-     * sont pas disponibles, on instancie donc un nouveau solveur et
-     * toutes les contraintes jusqu'au pas "step" à chaque itération,
-     * ainsi que le critère à optimiser. Pour chaque itération le
-     * problème est sensé être SAT et on imprime la solution à chaque
-     * itération. Si le problème est UNSAT, on retire la formule d'état
-     * final et on passe à l'itération suivante. Si le problème est
-     * UNKNOWN, on retourne le status UNKOWN. Si le problème était SAT
-     * pour toutes les itérations, on retourne le status SAT.
+     * Dernière profondeur du BMC : en élagage, celle où toutes les
+     * constantes sont utilisées (2 * nums.length - 2), maxNofSteps sinon.
      */
-    private Status solveApprox(int timeout) {
+    private int lastStep() {
+        return pruning ? 2 * nums.length - 2 : maxNofSteps;
+    }
 
-        // ce solver n'est pas incrémental, il faut le recréer à
-        // chaque nouvelle itération du BMC.
-        // utiliser les méthodes suivantes sur le solveur (attention
-        // aux majuscules !) :
-        // - Add pour ajouter une formule
-        // - MkMinimize pour ajouter un critère à optimiser
-        // - Check pour résoudre
-        if (timeout > 0)
-            System.out.println("\n\nsolveApprox with timeout " + timeout);
-        else
-            System.out.println("\n\nsolveApprox without timeout" );
+    /** Construit la formule de transition du pas "step" action par action. */
+    private BoolExpr buildTransitionFormula(int step) {
+        ArrayList<BoolExpr> arr = new ArrayList<>();
+
+        for (int i = 0; i < nums.length; i++) {
+            arr.add(pushNumFormula(step, i));
+        }
+    
+        arr.add(mulFormula(step));
+        arr.add(divFormula(step));
+        arr.add(addFormula(step));
+        arr.add(subFormula(step));
+        arr.add(actionChoiceFormula(step));
+        arr.add(usedFormula(step));
+
+        if (stackEncoding == StackEncoding.FLAT) {
+            arr.add(flatFrameFormula(step));
+        }
+    
+        return context.mkAnd(arr.stream().toArray(BoolExpr[]::new));
+    }
+
+    /**
+     * Formule de transition du pas "step" (step > 0), instance du
+     * gabarit : la transition du pas 1, construite une seule fois, dont
+     * chaque constante name@k est remplacée par name@(k + step - 1). Le
+     * pas 1 est le premier dont la transition a la forme générale (la
+     * contrainte leftDeep du cassage de symétries y porte sur l'action
+     * du pas précédent).
+     *
+     * Le gabarit n'est pas simplifié : l'instance est alors le terme
+     * même que construirait buildTransitionFormula, et la résolution
+     * est inchangée. Une version simplifiée (Expr.simplify) est
+     * équivalente mais réécrit les comparaisons et opérations, ce qui
+     * ralentit nettement la résolution.
+     */
+    private BoolExpr instantiateTemplate(int step) {
+        if (template == null) {
+            template = buildTransitionFormula(1);
+
+            ArrayList<Expr>  vars = new ArrayList<>();
+            HashSet<Integer> seen = new HashSet<>();
+            ArrayDeque<Expr> todo = new ArrayDeque<>();
+
+            todo.push(template);
+
+            while (! todo.isEmpty()) {
+                Expr e = todo.pop();
+
+                if (! seen.add(e.getId())) {
+                    continue;
+                }
+
+                if (e.isConst() && e.getFuncDecl().getDeclKind() == Z3_decl_kind.Z3_OP_UNINTERPRETED) {
+                    vars.add(e);
+                } else if (e.isApp()) {
+                    for (Expr arg : e.getArgs()) {
+                        todo.push(arg);
+                    }
+                }
+            }
+
+            templateVars    = vars.toArray(new Expr[0]);
+            templateNames   = new String[templateVars.length];
+            templateOffsets = new int[templateVars.length];
+
+            for (int v = 0; v < templateVars.length; v++) {
+                String name = templateVars[v].getFuncDecl().getName().toString();
+                int    at   = name.lastIndexOf('@');
+
+                templateNames[v]   = name.substring(0, at + 1);
+                templateOffsets[v] = Integer.parseInt(name.substring(at + 1)) - 1;
+            }
+        }
+
+        if (step == 1) {
+            return template;
+        }
+
+        Expr[] to = new Expr[templateVars.length];
+
+        for (int v = 0; v < to.length; v++) {
+            to[v] = context.mkConst(templateNames[v] + (step + templateOffsets[v]),
+                                    templateVars[v].getSort());
+        }
+
+        return (BoolExpr) template.substitute(templateVars, to);
+    }
+
+    /** État initial et formules de transition de tous les pas. */
+    BoolExpr[] unroll() {
+        BoolExpr[] formulas = new BoolExpr[maxNofSteps + 2];
+
+        formulas[0] = initialStateFormula();
 
         for (int step = 0; step <= maxNofSteps; step++) {
-            Optimize solver = context.mkOptimize();
+            formulas[step + 1] = transitionFormula(step);
+        }
+
+        return formulas;
+    }
+
+    /**
+     * Nombre de termes distincts de l'état initial et des formules de
+     * transition jusqu'au pas maxNofSteps, pour comparer la taille des
+     * encodages.
+     */
+    int unrollingSize() {
+        HashSet<Integer>    seen = new HashSet<>();
+        ArrayDeque<Expr>    todo = new ArrayDeque<>();
+
+        todo.push(initialStateFormula());
+
+        for (int step = 0; step <= maxNofSteps; step++) {
+            todo.push(transitionFormula(step));
+        }
+
+        while (! todo.isEmpty()) {
+            Expr e = todo.pop();
 
-            if (timeout > 0) {
-                Params p = context.mkParams();
-                p.add("timeout", timeout);
-                solver.setParameters(p);
+            if (seen.add(e.getId()) && e.isApp()) {
+                for (Expr arg : e.getArgs()) {
+                    todo.push(arg);
+                }
             }
+        }
 
-            solver.Add(initialStateFormula());
+        return seen.size();
+    }
 
-            for (int istep = 0; istep <= step; istep++) {
-                solver.Add(transitionFormula(istep));
+    /**
+     * Formule vraie ssi la pile est dans son état initial (au pas 0,
+     * toutes les cellules à zéro et dessus de pile à zero) et
+     * qu'aucune constante n'a encore été utilisée.
+     */
+    private BoolExpr initialStateFormula() {
+        BoolExpr[] unused = new BoolExpr[nums.length];
+
+        for (int i = 0; i < nums.length; i++) {
+            unused[i] = context.mkNot(usedStateVar(0, i));
+        }
+
+        return context.mkAnd(initialStackFormula(), context.mkAnd(unused));
+    }
+
+    /** Formule vraie ssi la pile est vide et à zéro au pas 0. */
+    private BoolExpr initialStackFormula() {
+        if (stackEncoding == StackEncoding.FLAT) {
+            BoolExpr[] cells = new BoolExpr[stackCapacity + 1];
+
+            cells[stackCapacity] = stackSizeIs(0, 0);
+
+            for (int k = 0; k < stackCapacity; k++) {
+                cells[k] = context.mkEq(slotStateVar(0, k), num(0));
             }
 
-            solver.Add(finalStateApproxFormula(step + 1));
-            solver.MkMinimize(finalStateApproxCriterion(step + 1));
-            Status status = solver.Check();
+            return context.mkAnd(cells);
+        }
+
+        ArrayExpr stack = stackStateVar(0);
+        IntExpr   idx   = idxStateVar(0);
+    
+        return context.mkAnd(
+            context.mkEq(idx, context.mkInt(0)),
+            context.mkEq(stack, context.mkConstArray(intSort, num(0))));
+    }
+
+    /**
+     * Formule vraie ssi la pile ne contient qu'un élément qui est égal
+     * à la valeur cible au pas "step".
+     */
+    private BoolExpr finalStateFormula(int step) {
+        Expr e1 = stackElem(step, 0);
+    
+        return context.mkAnd(
+            stackSizeIs(step, 1),
+            context.mkEq(e1, num(target))
+            );
+    }
+
+    /**
+     * Algorithme de résolution exacte. Déroule une boucle de
+     * model-checking borné de la relation de transition depuis l'état
+     * initial sur au plus maxNofSteps. Pour chaque itération de
+     * model-checking, on ajoute une formule de transition pour le step
+     * suivant dans le solveur, on pousse la formule d'état final, on
+     * lance une résolution. Si le problème est SAT, on imprime la
+     * solution, si le problème est UNSAT, on retire la formule d'état
+     * final et on passe à l'itération suivante. Si le problème est
+     * UNKNOWN, on retourne le status UNKOWN. Si le problème est UNSAT
+     * pour toutes les itérations, on retourne le status UNSAT.
+     */
+    private Status solveExact(int timeout) {
+        return solveExact(timeout, 0);
+    }
+
+    /**
+     * Comme solveExact, mais sans vérifier les profondeurs inférieures à
+     * firstStep (leurs transitions sont tout de même déroulées).
+     */
+    private Status solveExact(int timeout, int firstStep) {
+        Solver solver = context.mkSolver();
+        solver.add(initialStateFormula());
+    
+        if (timeout > 0) {
+            out.println("\n\nsolveExact with timeout " + timeout);
+        } else {
+            out.println("\n\nsolveExact without timeout" );
+        }
+    
+        for (int step = 0; step <= lastStep(); step++) {
+            if (deadlineReached()) {
+                out.println("- deadline reached at step " + step);
+                return Status.UNKNOWN;
+            }
+
+            solver.setParameters(timeoutParams(timeout));
+
+            long     start      = System.nanoTime();
+            BoolExpr transition = transitionFormula(step);
+
+            solver.add(transition);
+
+            if (step < firstStep || skipDepth(step)) {
+                encodeNanos += System.nanoTime() - start;
+                continue;
+            }
+
+            BoolExpr finalState = finalQuery(step + 1);
+            long     encoded    = System.nanoTime();
 
+            encodeNanos += encoded - start;
+
+            solver.push();
+            solver.add(finalState);
+            Status status = solver.check();
+
+            solveNanos  += System.nanoTime() - encoded;
+            nofChecks++;
+    
             switch (status) {
             case UNKNOWN:
-                System.out.println("\n- Unknown at step " + step);
-                System.out.println(solver.getReasonUnknown());
-                break;
-
+                out.println("- Unknown :\n" + solver.getReasonUnknown());
+                return Status.UNKNOWN;
+    
             case SATISFIABLE:
                 Model m = solver.getModel();
-                System.out.println("\n- SAT at step " + step);
+                out.println("- SAT at step " + step);
+                recordModel(m, step);
                 printModel(m, step);
-                break;
-
+                return Status.SATISFIABLE;
+    
             case UNSATISFIABLE:
-                System.out.println("\n- UNSAT at step " + step);
-                return Status.UNSATISFIABLE;
+                out.println("- UNSAT at step " + step);
+                solver.pop();
+                break;
             }
         }
-        return Status.SATISFIABLE;
+    
+        return Status.UNSATISFIABLE;
     }
 
     /**
-     * Résout le problème en essayant une résolution exacte,
-     * puis une résolution approximative en cas d'échec.
+     * Plus petite largeur signée représentant les constantes et la
+     * cible, bornée par bvBits.
      */
-    Status solve(int timeout) {
-        printParams();
+    private int minWidth() {
+        int max = Math.abs(target);
 
-        Status s = solveExact(timeout);
+        for (int num : nums) {
+            max = Math.max(max, Math.abs(num));
+        }
 
-        if (s != Status.SATISFIABLE) {
-            s = solveApprox(timeout);
+        return Math.min(bvBits, Math.max(2, 33 - Integer.numberOfLeadingZeros(max)));
+    }
+
+    /**
+     * Résolution exacte en largeur adaptative. Cherche d'abord un
+     * programme sur des bitvectors de minWidth bits (la plus petite
+     * largeur représentant les constantes et la cible), où le
+     * bit-blasting est bien moins coûteux qu'à bvBits bits. Le programme
+     * trouvé est rejoué en arithmétique exacte (replayFits) : s'il
+     * déborde de la largeur courante, elle est doublée et la recherche
+     * reprend à la profondeur de ce programme, les profondeurs
+     * inférieures ayant déjà été parcourues.
+     *
+     * Aux largeurs inférieures à bvBits, une profondeur UNSAT ne prouve
+     * rien (un programme peut avoir besoin de valeurs intermédiaires plus
+     * larges), et le programme trouvé n'est pas forcément le plus court.
+     * Si aucune largeur étroite ne donne de programme, la résolution
+     * exacte est donc refaite à bvBits bits, seule à pouvoir conclure
+     * UNSAT.
+     */
+    private Status solveAdaptive(int timeout) {
+        int firstStep = 0;
+
+        for (width = minWidth(); width < bvBits; width = Math.min(2 * width, bvBits)) {
+            if (deadlineReached()) {
+                return Status.UNKNOWN;
+            }
+
+            out.println("\n\nadaptive width " + width);
+
+            try (Chiffres narrow = fork(width)) {
+                Status status = narrow.solveExact(timeout, firstStep);
+
+                encodeNanos += narrow.encodeNanos;
+                solveNanos  += narrow.solveNanos;
+                decodeNanos += narrow.decodeNanos;
+                nofChecks   += narrow.nofChecks;
+
+                if (status == Status.SATISFIABLE) {
+                    if (replayFits(narrow.bestActions, width)) {
+                        bestActions = narrow.bestActions;
+                        bestValue   = narrow.bestValue;
+
+                        return Status.SATISFIABLE;
+                    }
+
+                    out.println("- overflow on " + width + " bits");
+                    firstStep = narrow.bestActions.length - 1;
+                }
+            }
         }
 
-        return s;
+        width = bvBits;
+
+        return solveExact(timeout);
     }
 
-    /** Affiche le contenu de la pile en ASCII sur sdtout. */
-    private void printStackAtStep(Model m, int step) {
-        for (int idx = 0; idx <= maxNofSteps; idx++) {
-            BitVecExpr resbv =
-                (BitVecExpr) context.mkSelect(stackStateVar(step),
-                                              context.mkInt(idx));
-            IntExpr resi = context.mkBV2Int(resbv, true);
-
-            if (m.eval(context.mkEq(idxStateVar(step),
-                                    context.mkInt(idx)), true).isTrue()) {
-                System.out.print(" <| ");
+    /**
+     * Rejoue le programme en arithmétique exacte : vrai ssi il atteint la
+     * cible et que toutes ses valeurs tiennent sur w bits signés, c'est à
+     * dire ssi le modèle qui l'a produit sur w bits ne repose sur aucun
+     * débordement.
+     */
+    private boolean replayFits(int[] actions, int w) {
+        long   min   = -(1L << (w - 1));
+        long   max   = (1L << (w - 1)) - 1;
+        long[] stack = new long[actions.length];
+        int    sp    = 0;
+
+        for (int code : actions) {
+            long value;
+
+            if (code < nums.length) {
+                value = nums[code];
             } else {
-                System.out.print(" | ");
+                long e1 = stack[--sp];
+                long e2 = stack[--sp];
+
+                switch (code - nums.length) {
+                case MUL: value = e1 * e2; break;
+                case DIV:
+                    if (e2 == 0) {
+                        return false;
+                    }
+
+                    value = e1 / e2;
+                    break;
+                case ADD: value = e1 + e2; break;
+                default:  value = e1 - e2; break;
+                }
+            }
+
+            if (value < min || value > max) {
+                return false;
             }
 
-            System.out.print(m.eval(resi, true));
+            stack[sp++] = value;
         }
 
-        System.out.println();
+        return sp == 1 && stack[0] == target;
     }
 
     /**
-     * Affiche le contenu d'un modèle m obtenu par BMC jusqu'à
-     * la profondeur steps.
+     * Vérifie isolément la profondeur "step" du BMC : état initial,
+     * transitions jusqu'au pas "step" et état final au pas step + 1.
+     * Si le problème est SAT, le modèle est décodé et conservé dans
+     * depthModel.
      */
-    private void printModel(Model m, int steps) {
-        System.out.print("init ~> ");
-        printStackAtStep(m, 0);
+    private Status checkDepth(int step, int timeout) {
+        Solver solver = context.mkSolver();
 
-        for (int step = 0; step <= steps; step++) {
-            for (int num : nums) {
-                if (m.eval(pushNumVar(step, num), true).isTrue()) {
-                    System.out.print("push " + String.valueOf(num) + " ~> ");
+        long start = System.nanoTime();
+
+        solver.add(initialStateFormula());
+
+        for (int istep = 0; istep <= step; istep++) {
+            solver.add(transitionFormula(istep));
+        }
+
+        solver.add(finalQuery(step + 1));
+
+        if (deadlineReached()) {
+            return Status.UNKNOWN;
+        }
+
+        solver.setParameters(timeoutParams(timeout));
+
+        long   encoded = System.nanoTime();
+        Status status  = solver.check();
+
+        encodeNanos += encoded - start;
+        solveNanos  += System.nanoTime() - encoded;
+        nofChecks++;
+
+        if (status == Status.SATISFIABLE) {
+            depthModel = solver.getModel();
+            recordModel(depthModel, step);
+        }
+
+        return status;
+    }
+
+    /**
+     * Exporte chaque requête de profondeur du BMC (celle de checkDepth :
+     * état initial, transitions jusqu'au pas k et finalQuery au pas
+     * k + 1) dans un fichier SMT-LIB2 autonome dir/prefix-dk.smt2, pour
+     * chaque k de 0 à lastStep() vérifié par solveExact (voir
+     * skipDepth). L'entête du fichier rappelle l'instance et ses
+     * options. Retourne les fichiers écrits.
+     */
+    public List<Path> exportSmtLib(String dir, String prefix) throws IOException {
+        ArrayList<Path>     files    = new ArrayList<>();
+        ArrayList<BoolExpr> formulas = new ArrayList<>();
+
+        Files.createDirectories(Paths.get(dir));
+        formulas.add(initialStateFormula());
+
+        for (int step = 0; step <= lastStep(); step++) {
+            formulas.add(transitionFormula(step));
+
+            if (skipDepth(step)) {
+                continue;
+            }
+
+            String header = "; chiffres nums=" + Arrays.toString(nums) + " target=" + target +
+                " arithmetic=" + arithmetic + " bvBits=" + bvBits + " noOverflows=" + noOverflows +
+                " stack=" + stackEncoding + " action=" + actionEncoding +
+                " symmetryBreaking=" + symmetryBreaking + " gameRules=" + gameRules +
+                " noIdentities=" + noIdentities + " pruning=" + pruning + " depth=" + step + "\n";
+            String query  = context.benchmarkToSMTString(prefix + "-d" + step, "", "unknown", "",
+                                                         formulas.toArray(new BoolExpr[0]),
+                                                         finalQuery(step + 1));
+            Path   file   = Paths.get(dir, prefix + "-d" + step + ".smt2");
+
+            Files.write(file, (header + query).getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    /**
+     * Variante parallèle de solveExact. Chaque profondeur est vérifiée
+     * par une tâche sur une copie de l'instance (un contexte par tâche,
+     * les contextes Z3 n'étant pas partagés entre threads), créée au
+     * début de la tâche et libérée à sa fin : au plus nofThreads
+     * contextes existent à la fois. Les résultats sont consommés dans
+     * l'ordre des profondeurs : la plus petite profondeur SAT est
+     * rapportée dès que toutes les profondeurs inférieures sont
+     * terminées, et dès qu'une profondeur est SAT les profondeurs
+     * supérieures sont interrompues.
+     */
+    private Status solveExactParallel(int timeout) {
+        out.println("\n\nsolveExact on " + nofThreads + " threads" +
+                           (timeout > 0 ? " with timeout " + timeout : " without timeout"));
+
+        ExecutorService             pool     = Executors.newFixedThreadPool(nofThreads);
+        Chiffres[]                  live     = new Chiffres[lastStep() + 1];
+        ArrayList<Future<Chiffres>> results  = new ArrayList<>();
+        AtomicInteger               firstSat = new AtomicInteger(Integer.MAX_VALUE);
+
+        for (int step = 0; step <= lastStep(); step++) {
+            final int step_ = step;
+
+            results.add(pool.submit(() -> runDepth(step_, timeout, live, firstSat)));
+        }
+
+        try {
+            for (int step = 0; step <= lastStep(); step++) {
+                Chiffres done = results.get(step).get();
+
+                encodeNanos += done.encodeNanos;
+                solveNanos  += done.solveNanos;
+                decodeNanos += done.decodeNanos;
+                nofChecks   += done.nofChecks;
+
+                switch (done.depthStatus) {
+                case UNKNOWN:
+                    out.println("- Unknown at step " + step);
+                    return Status.UNKNOWN;
+
+                case SATISFIABLE:
+                    out.println("- SAT at step " + step);
+                    bestActions = done.bestActions;
+                    bestValue   = done.bestValue;
+                    out.print(done.depthOutput);
+                    return Status.SATISFIABLE;
+
+                case UNSATISFIABLE:
+                    out.println("- UNSAT at step " + step);
+                    break;
                 }
             }
 
-            if (m.eval(mulVar(step), true).isTrue()) {
-                System.out.print("mul ~> ");
+            return Status.UNSATISFIABLE;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new Error("échec de la résolution parallèle", e);
+        } finally {
+            pool.shutdownNow();
+
+            synchronized (live) {
+                for (Chiffres worker : live) {
+                    if (worker != null) {
+                        worker.context.interrupt();
+                    }
+                }
             }
 
-            if (m.eval(divVar(step), true).isTrue()) {
-                System.out.print("div ~> ");
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+    }
+
+    /**
+     * Tâche de solveExactParallel pour la profondeur step : vérifie la
+     * profondeur sur une copie de l'instance, inscrite dans live le
+     * temps de la vérification pour pouvoir être interrompue, puis
+     * libère son contexte. La copie rendue ne garde que depthStatus, les
+     * temps et le programme trouvé, avec son affichage dans
+     * depthOutput.
+     */
+    private Chiffres runDepth(int step, int timeout, Chiffres[] live, AtomicInteger firstSat) {
+        Chiffres worker = fork();
 
-            if (m.eval(addVar(step), true).isTrue()) {
-                System.out.print("add ~> ");
+        synchronized (live) {
+            live[step] = worker;
+        }
+
+        try {
+            if (step > firstSat.get()) {
+                worker.depthStatus = Status.UNKNOWN;
+            } else if (worker.skipDepth(step)) {
+                worker.depthStatus = Status.UNSATISFIABLE;
+            } else {
+                worker.depthStatus = worker.checkDepth(step, timeout);
             }
 
-            if (m.eval(subVar(step), true).isTrue()) {
-                System.out.print("sub ~> ");
+            if (worker.depthStatus == Status.SATISFIABLE) {
+                firstSat.accumulateAndGet(step, Math::min);
+
+                synchronized (live) {
+                    for (int deeper = step + 1; deeper < live.length; deeper++) {
+                        if (live[deeper] != null) {
+                            live[deeper].context.interrupt();
+                        }
+                    }
+                }
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+                worker.out = new PrintStream(buffer, true);
+                worker.printModel(worker.depthModel, step);
+                worker.depthOutput = buffer.toString();
             }
 
-            printStackAtStep(m, step + 1);
+            worker.depthModel = null;
+
+            return worker;
+        } finally {
+            synchronized (live) {
+                live[step] = null;
+                worker.close();
+            }
         }
     }
 
-    private void printParams() {
-        System.out.println("\nParameters:");
-        System.out.println("- bvBits     : " + String.valueOf(bvBits));
-        System.out.println("- noOverflows: " + String.valueOf(noOverflows));
-        System.out.println("- nums       : " + Arrays.toString(nums));
-        System.out.println("- target     : " + String.valueOf(target));
+    /**
+     * Formes valides des programmes de length actions : true pour un
+     * push, false pour un opérateur. La pile contient au moins deux
+     * éléments avant chaque opérateur et exactement un à la fin ; il y a
+     * donc une forme par arbre binaire à (length + 1) / 2 feuilles
+     * (nombre de Catalan), et aucune si length est pair.
+     */
+    static List<boolean[]> shapes(int length) {
+        List<boolean[]> shapes = new ArrayList<>();
+
+        shapes(new boolean[length], 0, 0, shapes);
+
+        return shapes;
+    }
+
+    private static void shapes(boolean[] shape, int k, int height, List<boolean[]> out) {
+        if (k == shape.length) {
+            if (height == 1) {
+                out.add(shape.clone());
+            }
+
+            return;
+        }
+
+        // après un push, les pas restants doivent encore ramener la pile à un élément
+        if (height <= shape.length - k - 1) {
+            shape[k] = true;
+            shapes(shape, k + 1, height + 1, out);
+        }
+
+        if (height >= 2) {
+            shape[k] = false;
+            shapes(shape, k + 1, height - 1, out);
+        }
+    }
+
+    /** Littéral vrai ssi l'action du pas "step" est un push (checkShape). */
+    private BoolExpr pushGuard(int step) {
+        return boolConst("guard_push_" + step);
+    }
+
+    /** Littéral vrai ssi la pile du pas "step" a n éléments (checkShape). */
+    private BoolExpr sizeGuard(int step, int n) {
+        return boolConst("guard_size_" + step + "_" + n);
+    }
+
+    /**
+     * Vérifie la profondeur de la forme shape (shape.length actions) :
+     * le solveur incrémental shapeSolver est déroulé jusqu'à cette
+     * profondeur (ou ramené à elle en retirant les scopes des pas plus
+     * profonds), puis vérifié sous les hypothèses fixant la nature de
+     * chaque action et la hauteur de pile qui en découle. Seules
+     * restent à choisir les constantes et les opérateurs. Si le
+     * problème est SAT, le modèle est décodé et conservé dans
+     * depthModel.
+     */
+    private Status checkShape(boolean[] shape, int timeout) {
+        int  step  = shape.length - 1;
+        long start = System.nanoTime();
+
+        if (shapeSolver == null) {
+            shapeSolver = context.mkSolver();
+            shapeSolver.add(initialStateFormula());
+        }
+
+        if (shapeSteps != step) {
+            if (shapeSteps >= 0) {
+                // état final, puis transitions des pas plus profonds
+                shapeSolver.pop(1 + Math.max(0, shapeSteps - step));
+                shapeSteps = Math.min(shapeSteps, step);
+            }
+
+            for (int s = shapeSteps + 1; s <= step; s++) {
+                BoolExpr[] pushes = new BoolExpr[nums.length];
+
+                for (int i = 0; i < nums.length; i++) {
+                    pushes[i] = actionVar(s, i);
+                }
+
+                shapeSolver.push();
+                shapeSolver.add(transitionFormula(s));
+                shapeSolver.add(context.mkEq(pushGuard(s), context.mkOr(pushes)));
+
+                for (int n = 1; n <= Math.min(s + 1, stackCapacity); n++) {
+                    shapeSolver.add(context.mkEq(sizeGuard(s + 1, n), stackSizeIs(s + 1, n)));
+                }
+            }
+
+            shapeSolver.push();
+            shapeSolver.add(finalStateFormula(step + 1));
+            shapeSteps = step;
+        }
+
+        BoolExpr[] assumptions = new BoolExpr[2 * shape.length];
+        int        height      = 0;
+
+        for (int k = 0; k < shape.length; k++) {
+            height += shape[k] ? 1 : -1;
+            assumptions[2 * k]     = shape[k] ? pushGuard(k) : context.mkNot(pushGuard(k));
+            assumptions[2 * k + 1] = sizeGuard(k + 1, height);
+        }
+
+        if (deadlineReached()) {
+            return Status.UNKNOWN;
+        }
+
+        shapeSolver.setParameters(timeoutParams(timeout));
+
+        long   encoded = System.nanoTime();
+        Status status  = shapeSolver.check(assumptions);
+
+        encodeNanos += encoded - start;
+        solveNanos  += System.nanoTime() - encoded;
+        nofChecks++;
+
+        if (status == Status.SATISFIABLE) {
+            depthModel = shapeSolver.getModel();
+            recordModel(depthModel, step);
+        }
+
+        return status;
+    }
+
+    /**
+     * Résolution exacte par formes : pour chaque profondeur paire (les
+     * autres n'ont pas de forme valide), en profondeur croissante, les
+     * formes du programme sont énumérées (shapes) et chacune est
+     * vérifiée isolément (checkShape) par l'un des nofThreads workers,
+     * chacun dans son contexte. Le premier SAT interrompt les autres
+     * workers : le programme trouvé est le plus court si aucune forme
+     * moins profonde n'est restée UNKNOWN. Une forme UNKNOWN
+     * n'interrompt pas la recherche, mais le status est alors UNKNOWN
+     * si aucune forme n'est SAT.
+     */
+    private Status solveShapes(int timeout) {
+        int nofWorkers = Math.max(1, nofThreads);
+
+        out.println("\n\nsolveShapes on " + nofWorkers + " threads" +
+                    (timeout > 0 ? " with timeout " + timeout + " per shape" : " without timeout"));
+
+        ExecutorService                 pool    = Executors.newFixedThreadPool(nofWorkers);
+        ArrayList<Chiffres>             workers = new ArrayList<>();
+        ArrayBlockingQueue<Chiffres>    idle    = new ArrayBlockingQueue<>(nofWorkers);
+        AtomicReference<Chiffres>       winner  = new AtomicReference<>();
+        boolean                         unknown = false;
+
+        for (int i = 0; i < nofWorkers; i++) {
+            Chiffres worker = fork();
+
+            workers.add(worker);
+            idle.add(worker);
+        }
+
+        try {
+            for (int step = 0; step <= maxNofSteps; step += 2) {
+                if (deadlineReached()) {
+                    out.println("\n- deadline reached at step " + step);
+                    return Status.UNKNOWN;
+                }
+
+                List<boolean[]>      shapes  = shapes(step + 1);
+                List<Future<Status>> results = new ArrayList<>();
+
+                for (boolean[] shape : shapes) {
+                    results.add(pool.submit(() -> {
+                        if (winner.get() != null) {
+                            return Status.UNKNOWN;
+                        }
+
+                        Chiffres worker = idle.take();
+
+                        try {
+                            Status status = worker.checkShape(shape, timeout);
+
+                            if (status == Status.SATISFIABLE && winner.compareAndSet(null, worker)) {
+                                for (Chiffres other : workers) {
+                                    if (other != worker) {
+                                        other.context.interrupt();
+                                    }
+                                }
+                            }
+
+                            return status;
+                        } finally {
+                            idle.put(worker);
+                        }
+                    }));
+                }
+
+                int nofUnknown = 0;
+
+                for (Future<Status> result : results) {
+                    if (result.get() == Status.UNKNOWN) {
+                        nofUnknown++;
+                    }
+                }
+
+                Chiffres done = winner.get();
+
+                if (done != null) {
+                    out.println("- SAT at step " + step + " (" + shapes.size() + " shapes)");
+                    bestActions = done.bestActions;
+                    bestValue   = done.bestValue;
+                    done.printModel(done.depthModel, step);
+                    return Status.SATISFIABLE;
+                }
+
+                out.println("- " + (nofUnknown > 0 ? nofUnknown + " unknown" : "UNSAT") +
+                            " at step " + step + " (" + shapes.size() + " shapes)");
+                unknown |= nofUnknown > 0;
+            }
+
+            return unknown ? Status.UNKNOWN : Status.UNSATISFIABLE;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new Error("échec de la résolution par formes", e);
+        } finally {
+            pool.shutdownNow();
+
+            for (Chiffres worker : workers) {
+                worker.context.interrupt();
+            }
+
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Chiffres worker : workers) {
+                encodeNanos += worker.encodeNanos;
+                solveNanos  += worker.solveNanos;
+                decodeNanos += worker.decodeNanos;
+                nofChecks   += worker.nofChecks;
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Variable de nom name du noeud k de l'arbre à leaves feuilles : les
+     * arbres de tailles différentes ont des variables distinctes.
+     */
+    private String treeName(int leaves, String name, int k) {
+        return "tree" + leaves + "_" + name + "@" + k;
+    }
+
+    /** Trigger de l'action de code "code" au noeud k (encodage TREE). */
+    private BoolExpr treeAction(int leaves, int k, int code) {
+        return boolConst(treeName(leaves, code < nums.length
+                                          ? "push_" + code
+                                          : ChiffresResult.OP_NAMES[code - nums.length], k));
+    }
+
+    /** Valeur du noeud k de l'arbre à leaves feuilles. */
+    private Expr treeValue(int leaves, int k) {
+        return valueConst(treeName(leaves, "val", k));
+    }
+
+    /**
+     * Préconditions de "e1 op e2" au noeud k (encodage TREE) : les mêmes
+     * que celles des formules de transition de l'automate à pile
+     * (addFormula, subFormula, mulFormula, divFormula), le pas
+     * précédent de la contrainte leftDeep étant le noeud k - 1, fils
+     * e1 du noeud k.
+     */
+    private BoolExpr treePrecondition(int leaves, int k, int op, Expr e1, Expr e2) {
+        ArrayList<BoolExpr> conds = new ArrayList<>();
+        Expr                zero  = num(0);
+        Expr                one   = num(1);
+
+        if (symmetryBreaking && (op == ADD || op == MUL)) {
+            conds.add(context.mkImplies(context.mkAnd(lt(zero, e1), lt(zero, e2)), le(e1, e2)));
+            conds.add(context.mkNot(treeAction(leaves, k - 1, nums.length + op)));
+        }
+
+        switch (op) {
+        case MUL:
+            if (symmetryBreaking || noIdentities) {
+                conds.add(context.mkNot(context.mkEq(e1, one)));
+                conds.add(context.mkNot(context.mkEq(e2, one)));
+            }
+            break;
+
+        case DIV:
+            conds.add(context.mkNot(context.mkEq(e2, zero)));
+
+            if (symmetryBreaking || noIdentities) {
+                conds.add(context.mkNot(context.mkEq(e2, one)));
+            }
+
+            if (noIdentities) {
+                conds.add(context.mkNot(context.mkEq(apply(DIV, e1, e2), e2)));
+            }
+
+            if (gameRules) {
+                conds.add(context.mkEq(remainder(e1, e2), zero));
+            }
+            break;
+
+        case SUB:
+            if (gameRules) {
+                conds.add(lt(e2, e1));
+            } else if (arithmetic == Arithmetic.INTEGER) {
+                conds.add(le(e2, e1));
+            }
+
+            if (noIdentities) {
+                conds.add(context.mkNot(context.mkEq(apply(SUB, e1, e2), e2)));
+            }
+            break;
+
+        default:
+            break;
+        }
+
+        if (checkOverflows()) {
+            BitVecExpr a = (BitVecExpr) e1;
+            BitVecExpr b = (BitVecExpr) e2;
+
+            switch (op) {
+            case MUL: conds.add(context.mkBVMulNoOverflow(a, b, true)); break;
+            case DIV: conds.add(context.mkBVSDivNoOverflow(a, b)); break;
+            case ADD: conds.add(context.mkBVAddNoOverflow(a, b, true)); break;
+            default:
+                conds.add(context.mkBVSubNoOverflow(a, b));
+                conds.add(context.mkBVSubNoUnderflow(a, b, true));
+                break;
+            }
+        }
+
+        return context.mkAnd(conds.stream().toArray(BoolExpr[]::new));
+    }
+
+    /**
+     * Arbre d'expression à leaves feuilles (2 * leaves - 1 noeuds) dont
+     * la valeur de la racine est celle d'un programme. Les noeuds sont
+     * numérotés en ordre postfixe, la suite de leurs actions est donc
+     * le programme RPN lui-même : le fils e1 (dessus de pile) du noeud
+     * k est le noeud k - 1, et son fils e2 est le noeud qui précède le
+     * sous-arbre de k - 1, soit k - 1 - size@(k - 1) où size@j est la
+     * taille (bitvector) du sous-arbre de j. Cette numérotation est
+     * unique pour un arbre donné : il n'y a aucune symétrie de
+     * numérotation, ni pile ni indice symbolique dans un tableau, et
+     * seules les valeurs des noeuds sont sélectionnées (par la taille
+     * du sous-arbre e1). Chaque constante est utilisée au plus une fois
+     * et la racine couvre tous les noeuds.
+     */
+    private BoolExpr treeFormula(int leaves) {
+        int                 nodes    = 2 * leaves - 1;
+        int                 sizeBits = 32 - Integer.numberOfLeadingZeros(nodes);
+        ArrayList<BoolExpr> arr      = new ArrayList<>();
+
+        for (int k = 0; k < nodes; k++) {
+            BitVecExpr size  = bvConst(treeName(leaves, "size", k), sizeBits);
+            Expr       value = treeValue(leaves, k);
+
+            // choix de l'action : le noeud 0 est une feuille
+            BoolExpr[] codes = new BoolExpr[k == 0 ? nums.length : nums.length + NOF_OPS];
+
+            for (int code = 0; code < codes.length; code++) {
+                codes[code] = treeAction(leaves, k, code);
+            }
+
+            arr.add(exactlyOne(codes));
+
+            for (int i = 0; i < nums.length; i++) {
+                arr.add(context.mkImplies(codes[i],
+                                          context.mkAnd(context.mkEq(value, num(nums[i])),
+                                                        context.mkEq(size, context.mkBV(1, sizeBits)))));
+            }
+
+            if (k == 0) {
+                continue;
+            }
+
+            // fils e2 : noeud k - 1 - size@(k - 1), sa valeur et sa taille
+            BitVecExpr size1 = bvConst(treeName(leaves, "size", k - 1), sizeBits);
+            Expr       e1    = treeValue(leaves, k - 1);
+            Expr       e2    = valueConst(treeName(leaves, "e2", k));
+            BitVecExpr size2 = bvConst(treeName(leaves, "size2", k), sizeBits);
+            BoolExpr   isOp  = context.mkOr(Arrays.copyOfRange(codes, nums.length, codes.length));
+
+            arr.add(context.mkImplies(isOp, context.mkBVULE(size1, context.mkBV(k - 1, sizeBits))));
+
+            for (int j = 0; j < k - 1; j++) {
+                arr.add(context.mkImplies(
+                            context.mkAnd(isOp, context.mkEq(size1, context.mkBV(k - 1 - j, sizeBits))),
+                            context.mkAnd(context.mkEq(e2, treeValue(leaves, j)),
+                                          context.mkEq(size2, bvConst(treeName(leaves, "size", j), sizeBits)))));
+            }
+
+            arr.add(context.mkImplies(isOp,
+                                      context.mkEq(size, context.mkBVAdd(context.mkBV(1, sizeBits),
+                                                                         context.mkBVAdd(size1, size2)))));
+
+            for (int op = 0; op < NOF_OPS; op++) {
+                arr.add(context.mkImplies(codes[nums.length + op],
+                                          context.mkAnd(treePrecondition(leaves, k, op, e1, e2),
+                                                        context.mkEq(value, apply(op, e1, e2)))));
+            }
+        }
+
+        for (int i = 0; i < nums.length; i++) {
+            BoolExpr[] uses = new BoolExpr[nodes];
+
+            for (int k = 0; k < nodes; k++) {
+                uses[k] = treeAction(leaves, k, i);
+            }
+
+            arr.add(atMostOne(uses));
+        }
+
+        arr.add(context.mkEq(bvConst(treeName(leaves, "size", nodes - 1), sizeBits),
+                             context.mkBV(nodes, sizeBits)));
+
+        return context.mkAnd(arr.stream().toArray(BoolExpr[]::new));
+    }
+
+    /**
+     * Décode le programme de l'arbre à leaves feuilles du modèle m
+     * (actions des noeuds dans l'ordre) et le propose comme meilleur
+     * programme connu.
+     */
+    private int[] recordTree(Model m, int leaves) {
+        long  start   = System.nanoTime();
+        int[] actions = new int[2 * leaves - 1];
+
+        for (int k = 0; k < actions.length; k++) {
+            for (int code = 0; code < nums.length + NOF_OPS; code++) {
+                if ((code < nums.length || k > 0) && m.eval(treeAction(leaves, k, code), true).isTrue()) {
+                    actions[k] = code;
+                    break;
+                }
+            }
+        }
+
+        long value;
+
+        try {
+            value = replay(actions)[actions.length][0];
+        } catch (ArithmeticException e) {
+            value = ((IntNum) m.eval(toInt(treeValue(leaves, actions.length - 1)), true)).getInt64();
+        }
+
+        offer(actions, value);
+        decodeNanos += System.nanoTime() - start;
+
+        return actions;
+    }
+
+    /**
+     * Résolution exacte en encodage TREE : arbres à 1, 2, ...
+     * nums.length feuilles, chacun dans un scope du même solveur, jusqu'au
+     * premier SAT (le programme le plus court). Statuts comme solveExact.
+     */
+    private Status solveTree(int timeout) {
+        Solver solver = context.mkSolver();
+
+        out.println("\n\nsolveTree" + (timeout > 0 ? " with timeout " + timeout : " without timeout"));
+
+        for (int leaves = 1; leaves <= nums.length; leaves++) {
+            if (deadlineReached()) {
+                out.println("- deadline reached at " + leaves + " leaves");
+                return Status.UNKNOWN;
+            }
+
+            solver.setParameters(timeoutParams(timeout));
+
+            long     start   = System.nanoTime();
+            BoolExpr tree    = treeFormula(leaves);
+            BoolExpr root    = context.mkEq(treeValue(leaves, 2 * leaves - 2), num(target));
+            long     encoded = System.nanoTime();
+
+            encodeNanos += encoded - start;
+
+            solver.push();
+            solver.add(tree, root);
+
+            Status status = solver.check();
+
+            solveNanos += System.nanoTime() - encoded;
+            nofChecks++;
+
+            switch (status) {
+            case UNKNOWN:
+                out.println("- Unknown :\n" + solver.getReasonUnknown());
+                return Status.UNKNOWN;
+
+            case SATISFIABLE:
+                out.println("- SAT at " + leaves + " leaves");
+                printProgram(recordTree(solver.getModel(), leaves), null);
+                return Status.SATISFIABLE;
+
+            case UNSATISFIABLE:
+                out.println("- UNSAT at " + leaves + " leaves");
+                solver.pop();
+                break;
+            }
+        }
+
+        return Status.UNSATISFIABLE;
+    }
+
+    /**
+     * Résolution approchée en encodage TREE, comme solveApprox : pour
+     * chaque nombre de feuilles, un solveur d'optimisation minimise
+     * l'écart de la racine à la cible, borné par le meilleur programme
+     * connu s'il y en a un (amorces setBeamSeed et setLocalSeed
+     * comprises). UNKNOWN si l'un des appels au solveur n'a pas abouti.
+     */
+    private Status solveTreeApprox(int timeout) {
+        out.println("\n\nsolveTreeApprox" + (timeout > 0 ? " with timeout " + timeout : " without timeout"));
+
+        seedActions = null;
+
+        if ((localSeed > 0 || beamSeed > 0) && seedApprox()) {
+            return Status.SATISFIABLE;
+        }
+
+        boolean unknown = false;
+
+        for (int leaves = 1; leaves <= nums.length; leaves++) {
+            if (deadlineReached()) {
+                out.println("\n- deadline reached at " + leaves + " leaves");
+                return Status.UNKNOWN;
+            }
+
+            Optimize solver    = context.mkOptimize();
+            long     start     = System.nanoTime();
+            Expr     root      = treeValue(leaves, 2 * leaves - 2);
+            Expr     criterion = distance(root);
+            BoolExpr bound     = approxBound(criterion, 2 * leaves - 1);
+
+            solver.Add(treeFormula(leaves));
+            solver.Add(context.mkNot(context.mkEq(root, num(target))));
+
+            if (bound != null) {
+                solver.Add(bound);
+            }
+
+            solver.MkMinimize(criterion);
+
+            if (seedActions != null && seedActions.length == 2 * leaves - 1) {
+                int leaves_ = leaves;
+
+                addHints(solver, k -> treeAction(leaves_, k, seedActions[k]));
+            }
+
+            solver.setParameters(timeoutParams(timeout));
+
+            long   encoded = System.nanoTime();
+            Status status  = solver.Check();
+
+            encodeNanos += encoded - start;
+            solveNanos  += System.nanoTime() - encoded;
+            nofChecks++;
+
+            switch (status) {
+            case UNKNOWN:
+                out.println("\n- Unknown at " + leaves + " leaves");
+                out.println(solver.getReasonUnknown());
+                unknown = true;
+                break;
+
+            case SATISFIABLE:
+                out.println("\n- SAT at " + leaves + " leaves");
+                printProgram(recordTree(solver.getModel(), leaves), null);
+                break;
+
+            case UNSATISFIABLE:
+                if (bound != null) {
+                    out.println("\n- no better program at " + leaves + " leaves");
+                    break;
+                }
+
+                out.println("\n- UNSAT at " + leaves + " leaves");
+                return Status.UNSATISFIABLE;
+            }
+        }
+
+        return unknown ? Status.UNKNOWN : Status.SATISFIABLE;
+    }
+
+    /**
+     * Les k meilleurs programmes distincts, classés par écart à la cible
+     * puis par longueur, en une seule session incrémentale : les arbres
+     * d'expression (encodage TREE) à 1..nums.length feuilles sont
+     * encodés une fois dans le même solveur, chacun gardé par un
+     * sélecteur, et chaque réponse est bloquée avec toutes ses variantes
+     * commutées (voir block) avant de chercher la suivante (voir
+     * nextProgram).
+     *
+     * Chaque résultat est SATISFIABLE s'il atteint la cible,
+     * UNSATISFIABLE sinon, avec les temps passés depuis le précédent.
+     * Le classement n'est exact que si aucun appel au solveur (timeout
+     * ms chacun, 0 pour aucun) n'expire. La liste est plus courte que k
+     * s'il n'y a pas assez de programmes ou si la date limite expire.
+     */
+    public List<ChiffresResult> topK(int k, int timeout) {
+        ArrayList<ChiffresResult> results = new ArrayList<>();
+        Solver                    solver  = context.mkSolver();
+        BoolExpr[]                sels    = new BoolExpr[nums.length];
+
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        out.println("\n\ntopK " + k + (timeout > 0 ? " with timeout " + timeout : " without timeout"));
+
+        long start = System.nanoTime();
+
+        for (int leaves = 1; leaves <= nums.length; leaves++) {
+            sels[leaves - 1] = boolConst("topk_tree" + leaves);
+            solver.add(context.mkImplies(sels[leaves - 1], treeFormula(leaves)));
+        }
+
+        solver.add(exactlyOne(sels));
+        encodeNanos += System.nanoTime() - start;
+
+        long   encoded  = 0;
+        long   solved   = 0;
+        long   decoded  = 0;
+        long[] previous = null;
+
+        while (results.size() < k && ! deadlineReached()) {
+            long[] found = nextProgram(solver, sels, previous, timeout);
+
+            if (found == null) {
+                out.println("- no more programs after " + results.size());
+                break;
+            }
+
+            int[]  actions = bestActions;
+            long   value   = found[0];
+            Status status  = value == target ? Status.SATISFIABLE : Status.UNSATISFIABLE;
+
+            results.add(new ChiffresResult(nums, target, status, status, actions, value,
+                                           encodeNanos - encoded, solveNanos - solved,
+                                           decodeNanos - decoded));
+            encoded = encodeNanos;
+            solved  = solveNanos;
+            decoded = decodeNanos;
+
+            out.println("- #" + results.size() + " distance " + Math.abs(target - value) +
+                        " length " + actions.length);
+            printProgram(actions, null);
+
+            start = System.nanoTime();
+            block(solver, actions);
+            encodeNanos += System.nanoTime() - start;
+
+            previous    = new long[] { Math.abs(target - value), found[1] };
+            bestActions = null;
+        }
+
+        return results;
+    }
+
+    /** Comme topK(k, 0), sans timeout par appel au solveur. */
+    public List<ChiffresResult> topK(int k) {
+        return topK(k, 0);
+    }
+
+    /**
+     * Meilleur programme non bloqué de topK, de rang (écart, feuilles)
+     * au moins celui de la réponse précédente previous (null pour la
+     * première) : tout programme de rang inférieur a déjà été rendu.
+     * On cherche d'abord un programme au même écart, de même longueur
+     * ou plus long, puis à l'écart suivant (0 pour la première
+     * réponse), à chaque nombre de feuilles : un tel programme est de
+     * rang minimal. Sinon, à chaque nombre de feuilles, on descend vers
+     * l'écart minimal (un modèle d'écart strictement inférieur au
+     * meilleur trouvé, jusqu'à UNSAT). Le programme est laissé dans
+     * bestActions ; retourne sa valeur et son nombre de feuilles, null
+     * s'il n'y en a plus ou si l'écart n'est plus représentable (voir
+     * representable). Un appel expiré est traité comme UNSAT.
+     */
+    private long[] nextProgram(Solver solver, BoolExpr[] sels, long[] previous, int timeout) {
+        long[] found = previous == null ? null : atDistance(solver, sels, previous[0], (int) previous[1], timeout);
+        long   floor = previous == null ? 0 : previous[0] + 1;
+
+        if (found == null) {
+            found = atDistance(solver, sels, floor, 1, timeout);
+        }
+
+        if (found != null || ! representable(floor)) {
+            return fits(found);
+        }
+
+        long[] best = null;
+
+        for (int leaves = 1; leaves <= nums.length; leaves++) {
+            Expr                dist        = distance(treeValue(leaves, 2 * leaves - 2));
+            ArrayList<BoolExpr> assumptions = new ArrayList<>();
+
+            assumptions.add(sels[leaves - 1]);
+            assumptions.add(assume(solver, lt(num((int) floor), dist)));
+
+            while (true) {
+                if (best != null) {
+                    long bound = Math.abs(target - best[0]);
+
+                    if (! representable(bound)) {
+                        return null;
+                    }
+
+                    assumptions.add(assume(solver, lt(dist, num((int) bound))));
+                }
+
+                Model m = topKCheck(solver, timeout, assumptions.toArray(new BoolExpr[0]));
+
+                if (m == null) {
+                    break;
+                }
+
+                best = topKRecord(m, leaves);
+            }
+        }
+
+        return fits(best);
+    }
+
+    /**
+     * found, ou null si son écart à la cible n'est pas représentable :
+     * l'écart calculé par le solveur a alors débordé et le classement
+     * n'a plus de sens, on arrête l'énumération.
+     */
+    private long[] fits(long[] found) {
+        return found == null || representable(Math.abs(target - found[0])) ? found : null;
+    }
+
+    /**
+     * Premier programme non bloqué d'écart distance à la cible, à
+     * fromLeaves feuilles ou plus (voir nextProgram), null si aucun.
+     */
+    private long[] atDistance(Solver solver, BoolExpr[] sels, long distance, int fromLeaves, int timeout) {
+        if (! representable(distance)) {
+            return null;
+        }
+
+        for (int leaves = fromLeaves; leaves <= nums.length; leaves++) {
+            Expr     dist = distance(treeValue(leaves, 2 * leaves - 2));
+            BoolExpr same = assume(solver, context.mkEq(dist, num((int) distance)));
+            Model    m    = topKCheck(solver, timeout, sels[leaves - 1], same);
+
+            if (m != null) {
+                return topKRecord(m, leaves);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Appel au solveur de topK sous les hypothèses assumptions : son
+     * modèle, ou null si UNSAT ou UNKNOWN.
+     */
+    private Model topKCheck(Solver solver, int timeout, BoolExpr... assumptions) {
+        if (deadlineReached()) {
+            return null;
+        }
+
+        solver.setParameters(timeoutParams(timeout));
+
+        long   checked = System.nanoTime();
+        Status status  = solver.check(assumptions);
+
+        solveNanos += System.nanoTime() - checked;
+        nofChecks++;
+
+        if (status == Status.UNKNOWN) {
+            out.println("- Unknown :\n" + solver.getReasonUnknown());
+        }
+
+        return status == Status.SATISFIABLE ? solver.getModel() : null;
+    }
+
+    /**
+     * Décode l'arbre à leaves feuilles du modèle m dans bestActions ;
+     * retourne sa valeur et leaves.
+     */
+    private long[] topKRecord(Model m, int leaves) {
+        bestActions = null;
+
+        int[] actions = recordTree(m, leaves);
+        long  value   = ((IntNum) m.eval(toInt(treeValue(leaves, 2 * leaves - 2)), true)).getInt64();
+
+        bestActions = actions;
+        bestValue   = value;
+
+        return new long[] { value, leaves };
+    }
+
+    /**
+     * Littéral frais, ajouté à solver, qui impose formula quand il est
+     * pris pour hypothèse.
+     */
+    private BoolExpr assume(Solver solver, BoolExpr formula) {
+        BoolExpr literal = (BoolExpr) context.mkFreshConst("topk_assume", context.mkBoolSort());
+
+        solver.add(context.mkImplies(literal, formula));
+
+        return literal;
+    }
+
+    /**
+     * Interdit dans solver le programme actions (un arbre d'expression
+     * en ordre postfixe) et toutes ses variantes canoniquement égales :
+     * fils des additions et multiplications échangés, constantes
+     * remplacées par d'autres de même valeur. Ces variantes ne comptent
+     * donc pas comme de nouvelles réponses de topK.
+     */
+    private void block(Solver solver, int[] actions) {
+        int   leaves = (actions.length + 1) / 2;
+        int[] sizes  = new int[actions.length];
+
+        for (int k = 0; k < actions.length; k++) {
+            sizes[k] = actions[k] < nums.length ? 1 : 1 + sizes[k - 1] + sizes[k - 1 - sizes[k - 1]];
+        }
+
+        for (int[] variant : commutedVariants(actions, sizes, actions.length - 1)) {
+            BoolExpr[] nodes = new BoolExpr[variant.length];
+
+            for (int k = 0; k < variant.length; k++) {
+                ArrayList<BoolExpr> codes = new ArrayList<>();
+
+                for (int code = 0; code < nums.length + NOF_OPS; code++) {
+                    boolean same = variant[k] < nums.length
+                        ? code < nums.length && nums[code] == nums[variant[k]]
+                        : code == variant[k];
+
+                    if (same && (code < nums.length || k > 0)) {
+                        codes.add(treeAction(leaves, k, code));
+                    }
+                }
+
+                nodes[k] = context.mkOr(codes.toArray(new BoolExpr[0]));
+            }
+
+            solver.add(context.mkNot(context.mkAnd(nodes)));
+        }
+    }
+
+    /**
+     * Programmes postfixes du sous-arbre de racine "root" de actions
+     * (sizes : taille du sous-arbre de chaque noeud), les fils de
+     * chaque addition et multiplication pris dans les deux ordres.
+     */
+    private List<int[]> commutedVariants(int[] actions, int[] sizes, int root) {
+        ArrayList<int[]> variants = new ArrayList<>();
+
+        if (actions[root] < nums.length) {
+            variants.add(new int[] { actions[root] });
+            return variants;
+        }
+
+        int         op          = actions[root] - nums.length;
+        List<int[]> e1          = commutedVariants(actions, sizes, root - 1);
+        List<int[]> e2          = commutedVariants(actions, sizes, root - 1 - sizes[root - 1]);
+        boolean     commutative = op == ADD || op == MUL;
+
+        for (int[] a : e1) {
+            for (int[] b : e2) {
+                variants.add(concat(b, a, actions[root]));
+
+                if (commutative) {
+                    variants.add(concat(a, b, actions[root]));
+                }
+            }
+        }
+
+        return variants;
+    }
+
+    /** Programme "first second code". */
+    private static int[] concat(int[] first, int[] second, int code) {
+        int[] res = Arrays.copyOf(first, first.length + second.length + 1);
+
+        System.arraycopy(second, 0, res, first.length, second.length);
+        res[res.length - 1] = code;
+
+        return res;
+    }
+
+    /**
+     * Formule vraie ssi la pile n'est pas dans son état final au pas
+     * "step".
+     */
+    private BoolExpr finalStateApproxFormula(int step) {
+        return context.mkNot(finalStateFormula(step));
+    }
+
+    /**
+     * Critère d'optimisation, écart en valeur absolue entre la valeur
+     * du dessus de la pile et la valeur cible au pas "step".
+     */
+    private Expr finalStateApproxCriterion(int step) {
+        return distance(stackElem(step, 0));
+    }
+
+    /** Écart en valeur absolue entre value et la valeur cible. */
+    private Expr distance(Expr value) {
+        Expr diff  = apply(SUB, num(target), value);
+        
+        return context.mkITE(le(num(0), diff), diff, apply(SUB, num(0), diff));
+    }
+
+    /**
+     * Algorithme de résolution approchée par optimisation max-SMT. À
+     * chaque étape de BMC, on minimise la distance à la cible. Le
+     * solveur d'optimisation n'est pas incrémental donc push et pop ne
+     * sont pas disponibles, on instancie donc un nouveau solveur et
+     * toutes les contraintes jusqu'au pas "step" à chaque itération,
+     * ainsi que le critère à optimiser. Pour chaque itération le
+     * problème est sensé être SAT et on imprime la solution à chaque
+     * itération. Si le problème est UNSAT, on retire la formule d'état
+     * final et on passe à l'itération suivante. Si le problème est
+     * UNKNOWN, on passe aussi à l'itération suivante, mais le status
+     * retourné est UNKNOWN : le programme trouvé n'est peut-être pas le
+     * meilleur. Si le problème était SAT pour toutes les itérations, on
+     * retourne le status SAT. En élagage, les profondeurs sont bornées
+     * comme dans solveExact (lastStep, skipDepth).
+     */
+    Status solveApprox(int timeout) {
+
+        // ce solver n'est pas incrémental, il faut le recréer à
+        // chaque nouvelle itération du BMC.
+        // utiliser les méthodes suivantes sur le solveur (attention
+        // aux majuscules !) :
+        // - Add pour ajouter une formule
+        // - MkMinimize pour ajouter un critère à optimiser
+        // - Check pour résoudre
+        if (timeout > 0)
+            out.println("\n\nsolveApprox with timeout " + timeout);
+        else
+            out.println("\n\nsolveApprox without timeout" );
+
+        seedActions = null;
+
+        if ((localSeed > 0 || beamSeed > 0) && seedApprox()) {
+            return Status.SATISFIABLE;
+        }
+
+        boolean unknown = false;
+
+        for (int step = 0; step <= lastStep(); step++) {
+            if (skipDepth(step)) {
+                continue;
+            }
+
+            if (deadlineReached()) {
+                out.println("\n- deadline reached at step " + step);
+                return Status.UNKNOWN;
+            }
+
+            Optimize solver = context.mkOptimize();
+            long     start  = System.nanoTime();
+
+            solver.Add(initialStateFormula());
+
+            for (int istep = 0; istep <= step; istep++) {
+                solver.Add(transitionFormula(istep));
+            }
+
+            solver.Add(finalStateApproxFormula(step + 1));
+
+            // seul un programme meilleur que le meilleur connu intéresse
+            BoolExpr bound = approxBound(step);
+
+            if (bound != null) {
+                solver.Add(bound);
+            }
+
+            solver.MkMinimize(finalStateApproxCriterion(step + 1));
+
+            if (seedActions != null && seedActions.length <= step + 1) {
+                addHints(solver, k -> actionVar(k, seedActions[k]));
+            }
+
+            solver.setParameters(timeoutParams(timeout));
+
+            long   encoded = System.nanoTime();
+            Status status  = solver.Check();
+
+            encodeNanos += encoded - start;
+            solveNanos  += System.nanoTime() - encoded;
+            nofChecks++;
+
+            switch (status) {
+            case UNKNOWN:
+                out.println("\n- Unknown at step " + step);
+                out.println(solver.getReasonUnknown());
+                unknown = true;
+                break;
+
+            case SATISFIABLE:
+                Model m = solver.getModel();
+                out.println("\n- SAT at step " + step);
+                recordModel(m, step);
+                printModel(m, step);
+                break;
+
+            case UNSATISFIABLE:
+                if (bound != null) {
+                    out.println("\n- no better program at step " + step);
+                    break;
+                }
+
+                out.println("\n- UNSAT at step " + step);
+                return Status.UNSATISFIABLE;
+            }
+        }
+        return unknown ? Status.UNKNOWN : Status.SATISFIABLE;
+    }
+
+    /**
+     * Borne du critère de solveApprox au pas "step" quand un programme
+     * est déjà connu : écart au plus égal au sien si le programme
+     * cherché est plus court, strictement inférieur sinon. null si aucun
+     * programme n'est connu ou si son écart n'est pas représentable.
+     */
+    private BoolExpr approxBound(int step) {
+        return approxBound(finalStateApproxCriterion(step + 1), step + 1);
+    }
+
+    /**
+     * Comme approxBound(step), pour le critère criterion des programmes
+     * de length actions.
+     */
+    private BoolExpr approxBound(Expr criterion, int length) {
+        if (bestActions == null) {
+            return null;
+        }
+
+        long distance = Math.abs(target - bestValue);
+
+        if (! representable(distance)) {
+            return null;
+        }
+
+        Expr bound = num((int) distance);
+
+        return length < bestActions.length ? le(criterion, bound) : lt(criterion, bound);
+    }
+
+    /** Vrai ssi la distance est représentable par num. */
+    private boolean representable(long distance) {
+        return distance <= Integer.MAX_VALUE
+            && (arithmetic == Arithmetic.INTEGER || maxBvRange.compareTo(BigInteger.valueOf(distance)) >= 0);
+    }
+
+    /**
+     * Amorce la recherche approchée par une recherche en faisceau de
+     * largeur beamSeed puis localSeed ms de recherche locale (chacune si
+     * demandée). Le programme obtenu est conservé dans seedActions. Vrai
+     * si la cible est atteinte : aucun programme ne peut alors être plus
+     * proche.
+     */
+    private boolean seedApprox() {
+        if (beamSeed > 0) {
+            beam(beamSeed);
+        }
+
+        if (localSeed > 0 && (bestActions == null || bestValue != target)) {
+            local(localSeed, null);
+        }
+
+        seedActions = bestActions;
+        out.println("\n- seed: " + Math.abs(target - bestValue));
+
+        return bestActions != null && bestValue == target;
+    }
+
+    /**
+     * Recherche en faisceau de largeur width (ChiffresSearch.beam) ; son
+     * meilleur programme est proposé comme meilleur programme connu.
+     */
+    private void beam(int width) {
+        long           start  = System.nanoTime();
+        ChiffresSearch search = new ChiffresSearch(this, nums, target, 0);
+
+        search.beam(width);
+        solveNanos += System.nanoTime() - start;
+
+        out.println("\n- beam search: " + search.getIterations() + " expansions");
+
+        if (search.getBestActions() != null) {
+            offer(search.getBestActions(), search.getBestValue());
+        }
+    }
+
+    /**
+     * Indications de phase : chaque action k du programme d'amorce est
+     * ajoutée à solver comme contrainte souple action(k), après le
+     * critère et donc d'importance inférieure. Le solveur part ainsi du
+     * programme d'amorce sans que l'optimum ne change.
+     */
+    private void addHints(Optimize solver, IntFunction<BoolExpr> action) {
+        if (! phaseHints || seedActions == null) {
+            return;
+        }
+
+        for (int k = 0; k < seedActions.length; k++) {
+            solver.AssertSoft(action.apply(k), 1, "hints");
+        }
+    }
+
+    /**
+     * Recherche locale (ChiffresSearch) pendant budget ms au plus (0 :
+     * jusqu'à la date limite, ou jusqu'à atteindre la cible s'il n'y en
+     * a pas) ; son meilleur programme est proposé comme meilleur
+     * programme connu.
+     */
+    private void local(int budget, Consumer<ChiffresResult> listener) {
+        long limit = budget;
+
+        if (deadline > 0) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            limit = limit > 0 ? Math.min(limit, remaining) : remaining;
+        }
+
+        long           start  = System.nanoTime();
+        long           end    = limit > 0 || deadline > 0 ? start + limit * 1_000_000 : Long.MAX_VALUE;
+        ChiffresSearch search = new ChiffresSearch(this, nums, target, 0);
+
+        search.run(end, listener);
+        solveNanos += System.nanoTime() - start;
+
+        out.println("\n- local search: " + search.getIterations() + " iterations");
+
+        if (search.getBestActions() != null) {
+            offer(search.getBestActions(), search.getBestValue());
+        }
+    }
+
+    /**
+     * Recherche locale seule (voir ChiffresSearch) pendant budget ms (0
+     * pour aucun, en plus de la date limite éventuelle ; sans l'un ni
+     * l'autre, jusqu'à atteindre la cible). Chaque amélioration est
+     * transmise à listener. Le status (exact et final) est SATISFIABLE
+     * si la cible est atteinte, UNKNOWN sinon : la recherche locale ne
+     * prouve rien, et un programme exact trouvé n'est pas forcément le
+     * plus court (le résultat n'est donc pas mis en cache).
+     */
+    public ChiffresResult solveLocal(int budget, Consumer<ChiffresResult> listener) {
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        out.println("\n\nsolveLocal with budget " + budget);
+
+        local(budget, listener);
+
+        Status status = bestActions != null && bestValue == target ? Status.SATISFIABLE : Status.UNKNOWN;
+
+        return new ChiffresResult(nums, target, status, status, bestActions, bestValue,
+                                  encodeNanos, solveNanos, decodeNanos);
+    }
+
+    /**
+     * Recherche approchée seule (solveApprox ou solveTreeApprox selon
+     * l'encodage, précédée des amorces setBeamSeed et setLocalSeed) dans
+     * un budget global de budget ms, en plus de la date limite
+     * éventuelle. Le status (exact et final) est celui de solveApprox,
+     * UNKNOWN si le budget a expiré.
+     */
+    public ChiffresResult solveApproxResult(int budget) {
+        long savedDeadline = narrowDeadline(budget);
+
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        Status status;
+
+        try {
+            status = programEncoding == ProgramEncoding.TREE ? solveTreeApprox(0) : solveApprox(0);
+        } finally {
+            deadline = savedDeadline;
+        }
+
+        return new ChiffresResult(nums, target, status, status, bestActions, bestValue,
+                                  encodeNanos, solveNanos, decodeNanos);
+    }
+
+    /**
+     * Résolution approchée "anytime" : chaque programme strictement plus
+     * proche de la cible que le meilleur déjà trouvé est transmis à
+     * listener dès qu'il est trouvé, et le meilleur programme est
+     * retourné au plus tard à l'expiration du budget (ms, 0 pour aucun,
+     * en plus de la date limite éventuelle).
+     *
+     * Un seul solveur incrémental est déroulé en profondeur croissante :
+     * à chaque profondeur, on cherche une pile finale à un élément dont
+     * l'écart à la cible est strictement inférieur au meilleur écart,
+     * jusqu'à UNSAT. Les premières réponses, courtes, arrivent donc très
+     * vite, puis sont raffinées. Le status (exact et final) est
+     * SATISFIABLE si la cible est atteinte, UNSATISFIABLE si toutes les
+     * profondeurs ont été parcourues sans l'atteindre (le programme est
+     * alors le plus proche possible), UNKNOWN si le budget a expiré.
+     */
+    public ChiffresResult solveAnytime(int budget, Consumer<ChiffresResult> listener) {
+        long savedDeadline = narrowDeadline(budget);
+
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        out.println("\n\nsolveAnytime with budget " + budget);
+
+        Status status;
+
+        try {
+            status = anytime(listener);
+        } finally {
+            deadline = savedDeadline;
+        }
+
+        ChiffresResult result = new ChiffresResult(nums, target, status, status, bestActions, bestValue,
+                                                   encodeNanos, solveNanos, decodeNanos);
+
+        cachePut(result);
+
+        return result;
+    }
+
+    /**
+     * Avance la date limite à dans budget ms si elle est plus proche
+     * (budget 0 : inchangée) et retourne l'ancienne date limite.
+     */
+    private long narrowDeadline(int budget) {
+        long saved = deadline;
+        long end   = System.currentTimeMillis() + budget;
+
+        if (budget > 0 && (deadline == 0 || end < deadline)) {
+            deadline = end;
+        }
+
+        return saved;
+    }
+
+    /**
+     * Résout le problème dans un budget global de budget ms (en plus de
+     * la date limite éventuelle), au lieu d'un timeout par profondeur.
+     *
+     * Une part EXACT_SHARE du budget est d'abord réservée à la recherche
+     * exacte (solveExactScheduled), qui la répartit entre les profondeurs
+     * selon leur coût observé ; le reste, ainsi que ce que la recherche
+     * exacte n'a pas consommé, va à la recherche approchée anytime si la
+     * cible n'est pas atteinte.
+     */
+    public ChiffresResult solveScheduled(int budget) {
+        printParams();
+
+        ChiffresResult known = known();
+
+        if (known != null) {
+            return known;
+        }
+
+        long savedDeadline = narrowDeadline(budget);
+
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        out.println("\n\nsolveScheduled with budget " + budget);
+
+        Status exact;
+        Status s;
+
+        try {
+            long now      = System.currentTimeMillis();
+            long exactEnd = deadline == 0 ? 0 : now + (long) (EXACT_SHARE * (deadline - now));
+
+            exact = solveExactScheduled(exactEnd);
+            s     = exact == Status.SATISFIABLE ? exact : anytime(r -> {});
+        } finally {
+            deadline = savedDeadline;
+        }
+
+        ChiffresResult result = new ChiffresResult(nums, target, exact, s, bestActions, bestValue,
+                                                   encodeNanos, solveNanos, decodeNanos);
+
+        cachePut(result);
+
+        return result;
+    }
+
+    /** Littéral activant la transition du pas "step" dans solveExactScheduled. */
+    private BoolExpr transitionGuard(int step) {
+        return boolConst("guard_transition_" + step);
+    }
+
+    /** Littéral activant l'état final au pas "step" dans solveExactScheduled. */
+    private BoolExpr finalGuard(int step) {
+        return boolConst("guard_final_" + step);
+    }
+
+    /**
+     * Ordre de première visite des profondeurs : les skipAhead
+     * profondeurs des programmes utilisant toutes les constantes, puis
+     * toutes sauf une, etc., puis les autres en profondeur croissante.
+     */
+    private int[] scheduleOrder() {
+        int   deep  = Math.min(skipAhead, nums.length);
+        int[] order = new int[maxNofSteps + 1];
+        int   n     = 0;
+
+        for (int k = 0; k < deep; k++) {
+            order[n++] = 2 * (nums.length - k) - 2;
+        }
+
+        for (int step = 0; step <= maxNofSteps; step++) {
+            if (step % 2 != 0 || step < 2 * (nums.length - deep)) {
+                order[n++] = step;
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Recherche exacte jusqu'à la date exactEnd (0 : sans limite). Toutes
+     * les profondeurs partagent un seul solveur : transitions et états
+     * finaux y sont gardés par des littéraux (transitionGuard,
+     * finalGuard) et la profondeur "step" est vérifiée sous les
+     * hypothèses guard_transition_0..step et guard_final_(step+1). Les
+     * profondeurs peuvent ainsi être vérifiées dans n'importe quel ordre
+     * et revisitées sans perdre les clauses apprises.
+     *
+     * Au premier passage (dans l'ordre de scheduleOrder), chaque
+     * profondeur reçoit le plus grand de sa part équitable du temps
+     * restant et du double de son coût prédit, extrapolé des coûts
+     * observés aux profondeurs inférieures. Une profondeur qui dépasse
+     * sa tranche reste ouverte, et la recherche continue aux suivantes :
+     * un programme trouvé plus profond atteint tout de même la cible.
+     * Les passages suivants revisitent les profondeurs ouvertes avec une
+     * tranche doublée, jusqu'à exactEnd.
+     *
+     * Retourne SATISFIABLE dès qu'une profondeur l'est (le programme
+     * n'est alors pas forcément le plus court), UNSATISFIABLE si toutes
+     * les profondeurs le sont, UNKNOWN sinon.
+     */
+    private Status solveExactScheduled(long exactEnd) {
+        Solver   solver   = context.mkSolver();
+        int[]    order    = scheduleOrder();
+        Status[] statuses = new Status[maxNofSteps + 1];
+        long[]   costs    = new long[maxNofSteps + 1];
+        long[]   slices   = new long[maxNofSteps + 1];
+        int      unrolled = -1;
+
+        solver.add(initialStateFormula());
+
+        for (int step = 0; step <= maxNofSteps; step++) {
+            if (skipDepth(step)) {
+                statuses[step] = Status.UNSATISFIABLE;
+            }
+        }
+
+        for (int round = 0; ; round++) {
+            int nofOpen = 0;
+
+            for (int step = 0; step <= maxNofSteps; step++) {
+                nofOpen += statuses[step] == Status.UNSATISFIABLE ? 0 : 1;
+            }
+
+            if (nofOpen == 0) {
+                return Status.UNSATISFIABLE;
+            }
+
+            if (round > 0 && exactEnd == 0) {
+                // sans limite, UNKNOWN ne vient pas d'une tranche trop courte
+                return Status.UNKNOWN;
+            }
+
+            for (int step : order) {
+                if (statuses[step] == Status.UNSATISFIABLE) {
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+
+                if (deadlineReached() || (exactEnd > 0 && now >= exactEnd)) {
+                    return Status.UNKNOWN;
+                }
+
+                long slice = 0;
+
+                if (exactEnd > 0) {
+                    long fair = (exactEnd - now) / nofOpen;
+
+                    slice = round == 0
+                        ? Math.max(fair, 2 * predictedCost(costs, statuses, step))
+                        : Math.max(fair, 2 * slices[step]);
+                    slice = Math.min(Math.max(slice, MIN_SLICE), exactEnd - now);
+                }
+
+                long start = System.nanoTime();
+
+                for (; unrolled < step; unrolled++) {
+                    solver.add(context.mkImplies(transitionGuard(unrolled + 1),
+                                                 transitionFormula(unrolled + 1)));
+                    solver.add(context.mkImplies(finalGuard(unrolled + 2),
+                                                 finalQuery(unrolled + 2)));
+                }
+
+                BoolExpr[] assumptions = new BoolExpr[step + 2];
+
+                for (int i = 0; i <= step; i++) {
+                    assumptions[i] = transitionGuard(i);
+                }
+
+                assumptions[step + 1] = finalGuard(step + 1);
+                solver.setParameters(timeoutParams((int) slice));
+
+                long   encoded = System.nanoTime();
+                Status status  = solver.check(assumptions);
+                long   solved  = System.nanoTime();
+
+                encodeNanos    += encoded - start;
+                solveNanos     += solved - encoded;
+                nofChecks++;
+                costs[step]     = (solved - encoded) / 1_000_000;
+                slices[step]    = slice;
+                statuses[step]  = status;
+
+                out.println("- round " + round + " step " + step + " slice " + slice + " ms: " +
+                            status + " in " + costs[step] + " ms");
+
+                if (status == Status.SATISFIABLE) {
+                    Model m = solver.getModel();
+                    recordModel(m, step);
+                    printModel(m, step);
+                    return Status.SATISFIABLE;
+                }
+
+                if (status == Status.UNSATISFIABLE) {
+                    nofOpen--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Coût prédit (ms) de la profondeur "step" : coût de la plus profonde
+     * profondeur inférieure de même parité déjà conclue, multiplié par
+     * la croissance observée par pas entre les deux plus profondes (entre
+     * 1 et 4, 2 à défaut). 0 si aucune n'est conclue. Seules les
+     * profondeurs de même parité sont comparables : une pile à un
+     * élément demande un nombre impair d'actions, et les profondeurs qui
+     * n'en permettent pas sont conclues presque immédiatement.
+     */
+    private static long predictedCost(long[] costs, Status[] statuses, int step) {
+        int last     = -1;
+        int previous = -1;
+
+        for (int i = step - 2; i >= 0 && previous < 0; i -= 2) {
+            if (statuses[i] == Status.UNSATISFIABLE && costs[i] > 0) {
+                if (last < 0) {
+                    last = i;
+                } else {
+                    previous = i;
+                }
+            }
+        }
+
+        if (last < 0) {
+            return 0;
+        }
+
+        double growth = previous < 0
+            ? 2
+            : Math.pow((double) costs[last] / costs[previous], 1.0 / (last - previous));
+
+        growth = Math.min(4, Math.max(1, growth));
+
+        return (long) (costs[last] * Math.pow(growth, step - last));
+    }
+
+    /**
+     * Boucle de solveAnytime, jusqu'à la date limite : retourne
+     * SATISFIABLE si la cible est atteinte, UNSATISFIABLE si toutes les
+     * profondeurs ont été parcourues, UNKNOWN sinon (notamment si l'écart
+     * du meilleur programme n'est pas représentable, voir representable :
+     * on ne peut alors plus demander mieux au solveur).
+     */
+    private Status anytime(Consumer<ChiffresResult> listener) {
+        Solver solver = context.mkSolver();
+        Status status = Status.UNSATISFIABLE;
+
+        solver.add(initialStateFormula());
+
+        for (int step = 0; step <= lastStep() && status == Status.UNSATISFIABLE; step++) {
+            long start = System.nanoTime();
+
+            solver.add(transitionFormula(step));
+
+            if (skipDepth(step)) {
+                encodeNanos += System.nanoTime() - start;
+                continue;
+            }
+
+            solver.push();
+            solver.add(stackSizeIs(step + 1, 1));
+
+            if (pruning) {
+                solver.add(depthFormula(step + 1));
+            }
+
+            Expr criterion = finalStateApproxCriterion(step + 1);
+
+            encodeNanos += System.nanoTime() - start;
+
+            while (true) {
+                if (deadlineReached()) {
+                    status = Status.UNKNOWN;
+                    break;
+                }
+
+                if (bestActions != null) {
+                    long distance = Math.abs(target - bestValue);
+
+                    if (! representable(distance)) {
+                        status = Status.UNKNOWN;
+                        break;
+                    }
+
+                    solver.add(lt(criterion, num((int) distance)));
+                }
+
+                solver.setParameters(timeoutParams(0));
+
+                long   checked = System.nanoTime();
+                Status s       = solver.check();
+
+                solveNanos += System.nanoTime() - checked;
+                nofChecks++;
+
+                if (s == Status.UNKNOWN) {
+                    status = Status.UNKNOWN;
+                    break;
+                }
+
+                if (s == Status.UNSATISFIABLE) {
+                    break;
+                }
+
+                recordModel(solver.getModel(), step);
+                out.println("- step " + step + ": " + bestValue);
+
+                ChiffresResult improved = new ChiffresResult(nums, target, Status.UNKNOWN,
+                                                             Status.UNKNOWN, bestActions, bestValue,
+                                                             encodeNanos, solveNanos, decodeNanos);
+
+                listener.accept(improved);
+
+                if (bestValue == target) {
+                    status = Status.SATISFIABLE;
+                    break;
+                }
+            }
+
+            solver.pop();
+        }
+
+        return status;
+    }
+
+    /**
+     * Résout le problème en essayant une résolution exacte,
+     * puis une résolution approximative en cas d'échec. La résolution
+     * exacte est parallélisée sur les profondeurs si setParallelism a
+     * fixé plus d'un thread.
+     */
+    Status solve(int timeout) {
+        return solveResult(timeout).getStatus();
+    }
+
+    /**
+     * Comme solve, mais retourne le résultat décodé : meilleur
+     * programme trouvé (le plus proche de la cible, puis le plus
+     * court), sa valeur et le temps passé dans chaque phase. En
+     * résolution parallèle, les temps sont cumulés sur les workers.
+     */
+    public ChiffresResult solveResult(int timeout) {
+        printParams();
+
+        ChiffresResult known = known();
+
+        if (known != null) {
+            return known;
+        }
+
+        bestActions = null;
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        Status exact;
+
+        if (programEncoding == ProgramEncoding.TREE) {
+            exact = solveTree(timeout);
+        } else if (shapeSplit) {
+            exact = solveShapes(timeout);
+        } else if (nofThreads > 1) {
+            exact = solveExactParallel(timeout);
+        } else if (adaptiveWidth && arithmetic == Arithmetic.BITVECTOR) {
+            exact = solveAdaptive(timeout);
+        } else {
+            exact = solveExact(timeout);
+        }
+
+        Status s = exact;
+
+        if (s != Status.SATISFIABLE) {
+            s = programEncoding == ProgramEncoding.TREE ? solveTreeApprox(timeout) : solveApprox(timeout);
+        }
+
+        ChiffresResult result = new ChiffresResult(nums, target, exact, s, bestActions, bestValue,
+                                                   encodeNanos, solveNanos, decodeNanos);
+
+        cachePut(result);
+
+        return result;
+    }
+
+    /**
+     * Résultat déjà connu de l'instance, ou null : programme exact de la
+     * table précalculée s'il est valide dans l'arithmétique de
+     * l'instance (aucune valeur hors de bvBits bits), sinon résultat du
+     * cache. La table n'est consultée qu'avec les règles du jeu : elle
+     * conserve le programme le plus court selon ces règles, qui n'est
+     * pas forcément le plus court pour une sémantique plus permissive.
+     * Seules ses solutions exactes sont reprises : l'inaccessibilité
+     * selon les règles du jeu ne prouve rien non plus.
+     */
+    private ChiffresResult known() {
+        if (table != null && gameRules) {
+            ChiffresResult hit = table.get(nums, target);
+
+            if (hit != null && hit.getStatus() == Status.SATISFIABLE
+                && (arithmetic == Arithmetic.INTEGER || replayFits(hit.getActions(), bvBits))) {
+                out.println("\n\ntable hit: " + hit);
+                return hit;
+            }
+        }
+
+        if (cache != null) {
+            ChiffresResult cached = cache.get(nums, target, cacheBits(), noOverflows, cacheOptions());
+
+            if (cached != null) {
+                out.println("\n\ncache hit: " + cached);
+                return cached;
+            }
+        }
+
+        return null;
+    }
+
+    /** Conserve le résultat dans le cache, s'il y en a un. */
+    private void cachePut(ChiffresResult result) {
+        if (cache != null) {
+            try {
+                cache.put(cacheBits(), noOverflows, cacheOptions(), result);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Largeur des valeurs dans la clé du cache : bvBits, ou 0 pour
+     * l'arithmétique entière.
+     */
+    private int cacheBits() {
+        return arithmetic == Arithmetic.INTEGER ? 0 : bvBits;
+    }
+
+    /**
+     * Options de la clé du cache : celles qui changent l'ensemble des
+     * programmes valides. symmetryBreaking peut perdre des solutions
+     * dont la réécriture déborde : un UNSAT obtenu avec cette option ne
+     * vaut pas sans elle. gameRules et noIdentities interdisent des
+     * programmes valides par défaut (division tronquée, valeur négative,
+     * identité) : leurs résultats ne valent dans aucun sens pour les
+     * autres modes.
+     */
+    private String cacheOptions() {
+        return (symmetryBreaking ? "symmetryBreaking " : "") +
+            (gameRules ? "gameRules " : "") +
+            (noIdentities ? "noIdentities" : "");
+    }
+
+    /**
+     * Répond en une passe à toutes les cibles de [lo, hi] pour les
+     * constantes de l'instance (la cible de l'instance est ignorée). La
+     * relation de transition n'est déroulée qu'une fois dans un solveur
+     * incrémental. À chaque profondeur, la valeur finale est laissée
+     * libre dans [lo, hi] et les valeurs atteintes sont énumérées, chacune
+     * étant ensuite exclue : la première profondeur à laquelle une valeur
+     * apparaît donne son programme le plus court.
+     *
+     * Une cible atteinte a un résultat exact. Une cible manquée reçoit le
+     * programme de la valeur atteinte la plus proche dans [lo, hi] (les
+     * valeurs hors de l'intervalle ne sont pas énumérées), avec un status
+     * exact UNSATISFIABLE si l'énumération est complète et UNKNOWN si elle
+     * a été interrompue par un timeout ou la date limite. Ce programme
+     * n'est pas forcément le plus proche (une valeur hors de [lo, hi]
+     * peut l'être) : seules les cibles atteintes sont mises en cache.
+     * En arithmétique BITVECTOR, seules les valeurs de [lo, hi]
+     * représentables sur bvBits bits sont énumérées. Les temps d'un
+     * résultat sont ceux cumulés jusqu'à sa découverte.
+     */
+    public Map<Integer, ChiffresResult> sweep(int lo, int hi, int timeout) {
+        TreeMap<Integer, ChiffresResult> reached  = new TreeMap<>();
+        Solver                           solver   = context.mkSolver();
+        Status                           complete = Status.UNSATISFIABLE;
+
+        encodeNanos = 0;
+        solveNanos  = 0;
+        decodeNanos = 0;
+        nofChecks   = 0;
+
+        int first = lo;
+        int last  = hi;
+
+        if (arithmetic == Arithmetic.BITVECTOR) {
+            first = minBvRange.max(BigInteger.valueOf(lo)).intValue();
+            last  = maxBvRange.min(BigInteger.valueOf(hi)).intValue();
+        }
+
+        solver.add(initialStateFormula());
+
+        out.println("\n\nsweep of targets " + lo + ".." + hi);
+
+        for (int step = 0; step <= lastStep() && first <= last && complete != Status.UNKNOWN; step++) {
+            long start = System.nanoTime();
+
+            solver.add(transitionFormula(step));
+
+            if (skipDepth(step)) {
+                encodeNanos += System.nanoTime() - start;
+                continue;
+            }
+
+            solver.push();
+
+            Expr top = stackElem(step + 1, 0);
+
+            solver.add(stackSizeIs(step + 1, 1), le(num(first), top), le(top, num(last)));
+
+            if (pruning) {
+                solver.add(depthFormula(step + 1));
+            }
+
+            for (int value : reached.keySet()) {
+                solver.add(context.mkNot(context.mkEq(top, num(value))));
+            }
+
+            encodeNanos += System.nanoTime() - start;
+
+            while (true) {
+                if (deadlineReached()) {
+                    complete = Status.UNKNOWN;
+                    break;
+                }
+
+                solver.setParameters(timeoutParams(timeout));
+
+                long   checked = System.nanoTime();
+                Status status  = solver.check();
+
+                solveNanos += System.nanoTime() - checked;
+                nofChecks++;
+
+                if (status != Status.SATISFIABLE) {
+                    if (status == Status.UNKNOWN) {
+                        out.println("- Unknown at step " + step + ":\n" + solver.getReasonUnknown());
+                        complete = Status.UNKNOWN;
+                    }
+
+                    break;
+                }
+
+                long  decoded = System.nanoTime();
+                Model m       = solver.getModel();
+                int[] actions = decodeActions(m, step);
+                long  value   = decodeValue(m, actions);
+
+                decodeNanos += System.nanoTime() - decoded;
+
+                reached.put((int) value,
+                            new ChiffresResult(nums, (int) value, Status.SATISFIABLE,
+                                               Status.SATISFIABLE, actions, value,
+                                               encodeNanos, solveNanos, decodeNanos));
+                solver.add(context.mkNot(context.mkEq(top, num((int) value))));
+            }
+
+            out.println("- step " + step + ": " + reached.size() + " targets reached");
+            solver.pop();
+        }
+
+        TreeMap<Integer, ChiffresResult> results = new TreeMap<>();
+
+        for (int t = lo; t <= hi; t++) {
+            ChiffresResult result = reached.get(t);
+
+            if (result == null) {
+                result = nearest(reached, t, complete);
+            } else {
+                cachePut(result);
+            }
+
+            results.put(t, result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Résultat approché pour la cible manquée t : programme de la valeur
+     * atteinte la plus proche (la plus courte à égalité), ou aucun.
+     */
+    private ChiffresResult nearest(TreeMap<Integer, ChiffresResult> reached, int t, Status complete) {
+        Map.Entry<Integer, ChiffresResult> below = reached.floorEntry(t);
+        Map.Entry<Integer, ChiffresResult> above = reached.ceilingEntry(t);
+        ChiffresResult                     best  = null;
+
+        if (below != null) {
+            best = below.getValue();
+        }
+
+        if (above != null
+            && (best == null
+                || above.getKey() - t < t - below.getKey()
+                || (above.getKey() - t == t - below.getKey()
+                    && above.getValue().getLength() < best.getLength()))) {
+            best = above.getValue();
+        }
+
+        return new ChiffresResult(nums, t, complete, complete,
+                                  best == null ? null : best.getActions(),
+                                  best == null ? 0 : best.getValue(),
+                                  encodeNanos, solveNanos, decodeNanos);
+    }
+
+    /**
+     * Décode en une passe le modèle m obtenu par BMC jusqu'à la
+     * profondeur steps : code de l'action de chaque pas et valeur du
+     * dessus de pile final. Le programme est conservé s'il est plus
+     * proche de la cible que le meilleur déjà décodé, ou aussi proche
+     * et plus court.
+     */
+    private void recordModel(Model m, int steps) {
+        long  start   = System.nanoTime();
+        int[] actions = decodeActions(m, steps);
+
+        offer(actions, decodeValue(m, actions));
+
+        decodeNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Conserve le programme actions, de valeur value, s'il est plus
+     * proche de la cible que le meilleur connu, ou aussi proche et plus
+     * court.
+     */
+    private void offer(int[] actions, long value) {
+        if (bestActions == null
+            || Math.abs(target - value) < Math.abs(target - bestValue)
+            || (Math.abs(target - value) == Math.abs(target - bestValue)
+                && actions.length < bestActions.length)) {
+            bestActions   = actions;
+            bestValue     = value;
+            improvedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Codes des actions des pas 0 à steps dans le modèle m, lus
+     * directement dans l'interprétation des variables d'action : aucun
+     * terme n'est créé ni évalué.
+     */
+    private int[] decodeActions(Model m, int steps) {
+        int[]     actions = new int[steps + 1];
+        boolean[] used    = new boolean[nums.length];
+        int       size    = 0;
+
+        for (int step = 0; step <= steps; step++) {
+            int code = modelAction(m, step, size, used);
+
+            if (code < nums.length) {
+                used[code] = true;
+                size++;
+            } else {
+                size--;
+            }
+
+            actions[step] = code;
+        }
+
+        return actions;
+    }
+
+    /**
+     * Code de l'action choisie au pas "step", d'après l'interprétation
+     * de ses variables dans m ; par évaluation (actionAt) si le modèle
+     * ne les interprète pas. En encodage ONE_HOT, seules les actions
+     * possibles sont examinées (les opérateurs si la pile a au moins
+     * deux éléments, puis les constantes non utilisées), une variable
+     * par appel au modèle.
+     */
+    private int modelAction(Model m, int step, int size, boolean[] used) {
+        FuncDecl[] decls = actionDecls(step);
+
+        if (actionEncoding == ActionEncoding.SELECTOR) {
+            Expr selector = m.getConstInterp(decls[0]);
+
+            if (selector != null) {
+                return ((BitVecNum) selector).getInt();
+            }
+
+            return actionAt(m, step);
+        }
+
+        for (int k = 0; k < decls.length; k++) {
+            int code = (nums.length + k) % decls.length;
+
+            if (code < nums.length ? used[code] : size < 2) {
+                continue;
+            }
+
+            Expr trigger = m.getConstInterp(decls[code]);
+
+            if (trigger != null && trigger.getBoolValue() == Z3_lbool.Z3_L_TRUE) {
+                return code;
+            }
+        }
+
+        return actionAt(m, step);
+    }
+
+    /**
+     * Déclarations des variables d'action du pas "step", indicées par
+     * code (le seul sélecteur en encodage SELECTOR), conservées d'un
+     * décodage à l'autre.
+     */
+    private FuncDecl[] actionDecls(int step) {
+        while (actionDecls.size() <= step) {
+            int        s     = actionDecls.size();
+            FuncDecl[] decls = new FuncDecl[actionEncoding == ActionEncoding.SELECTOR
+                                            ? 1 : nums.length + NOF_OPS];
+
+            for (int code = 0; code < decls.length; code++) {
+                decls[code] = actionEncoding == ActionEncoding.SELECTOR
+                    ? selectorVar(s).getFuncDecl()
+                    : actionVar(s, code).getFuncDecl();
+            }
+
+            actionDecls.add(decls);
+        }
+
+        return actionDecls.get(step);
+    }
+
+    /**
+     * Valeur (signée) du dessus de pile à la fin du programme actions,
+     * obtenue par replay ; par évaluation du modèle m si une valeur
+     * entière dépasse un long.
+     */
+    private long decodeValue(Model m, int[] actions) {
+        try {
+            long[][] cells = replay(actions);
+
+            return cells[actions.length][stackSize(actions, actions.length) - 1];
+        } catch (ArithmeticException e) {
+            return ((IntNum) m.eval(toInt(stackElem(actions.length, 0)), true)).getInt64();
+        }
+    }
+
+    /**
+     * Rejoue le programme en arithmétique native, avec la sémantique de
+     * l'encodage : bitvectors signés de bvBits bits (division tronquée,
+     * comme bvsdiv) ou entiers (division euclidienne, comme div). Retourne
+     * les cases de la pile avant le premier pas puis après chaque pas
+     * (cells[k] après k actions). Comme dans les encodages ARRAY et FLAT,
+     * une case libérée garde sa dernière valeur, et les cases jamais
+     * écrites valent 0. Lève ArithmeticException si une valeur entière
+     * dépasse un long.
+     */
+    private long[][] replay(int[] actions) {
+        int      nofCells = stackEncoding == StackEncoding.FLAT ? stackCapacity : maxNofSteps + 1;
+        long[][] cells    = new long[actions.length + 1][];
+        int      sp       = 0;
+
+        cells[0] = new long[nofCells];
+
+        for (int step = 0; step < actions.length; step++) {
+            long[] next = cells[step].clone();
+            int    code = actions[step];
+
+            if (code < nums.length) {
+                next[sp++] = constant(code);
+            } else {
+                long e1 = next[sp - 1];
+                long e2 = next[sp - 2];
+
+                next[sp - 2] = apply(code - nums.length, e1, e2);
+                sp--;
+            }
+
+            cells[step + 1] = next;
+        }
+
+        return cells;
+    }
+
+    /** Résultat de "e1 op e2" en arithmétique native (voir replay). */
+    long apply(int op, long e1, long e2) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            switch (op) {
+            case MUL: return Math.multiplyExact(e1, e2);
+            case DIV: return e2 > 0 ? Math.floorDiv(e1, e2) : -Math.floorDiv(e1, Math.negateExact(e2));
+            case ADD: return Math.addExact(e1, e2);
+            default:  return Math.subtractExact(e1, e2);
+            }
+        }
+
+        long value;
+
+        switch (op) {
+        case MUL: value = e1 * e2; break;
+        case DIV: value = e1 / e2; break;
+        case ADD: value = e1 + e2; break;
+        default:  value = e1 - e2; break;
+        }
+
+        return (value << (64 - bvBits)) >> (64 - bvBits);
+    }
+
+    /**
+     * Valeur de la constante nums[i] en arithmétique native (voir
+     * replay) : sur bitvectors, ramenée à bvBits bits signés comme par
+     * toBvNum.
+     */
+    long constant(int i) {
+        if (arithmetic == Arithmetic.INTEGER) {
+            return nums[i];
+        }
+
+        return ((long) nums[i] << (64 - bvBits)) >> (64 - bvBits);
+    }
+
+    /**
+     * Vrai ssi "e1 op e2" respecte, en arithmétique native, les
+     * préconditions de la relation de transition qui restreignent les
+     * valeurs atteignables : division par zéro, règles du jeu,
+     * débordements (et, en arithmétique entière, soustraction négative
+     * ou débordement de long). Les options d'élagage (symmetryBreaking,
+     * noIdentities) ne retirent aucune valeur et ne sont pas vérifiées.
+     */
+    boolean allowed(int op, long e1, long e2) {
+        if (op == DIV && (e2 == 0 || (gameRules && e1 % e2 != 0))) {
+            return false;
+        }
+
+        if (op == SUB && (gameRules ? e2 >= e1 : arithmetic == Arithmetic.INTEGER && e2 > e1)) {
+            return false;
+        }
+
+        try {
+            if (arithmetic == Arithmetic.INTEGER) {
+                apply(op, e1, e2);
+                return true;
+            }
+
+            if (!checkOverflows()) {
+                return true;
+            }
+
+            long exact;
+
+            switch (op) {
+            case MUL: exact = Math.multiplyExact(e1, e2); break;
+            case DIV: exact = e1 / e2; break;
+            case ADD: exact = Math.addExact(e1, e2); break;
+            default:  exact = Math.subtractExact(e1, e2); break;
+            }
+
+            return exact == (exact << (64 - bvBits)) >> (64 - bvBits);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /** Valeur de la pile convertie en entier mathématique (signé). */
+    private Expr toInt(Expr value) {
+        return arithmetic == Arithmetic.INTEGER
+            ? value
+            : context.mkBV2Int((BitVecExpr) value, true);
+    }
+
+    /** Code de l'action choisie au pas "step", par évaluation dans le modèle m. */
+    private int actionAt(Model m, int step) {
+        if (actionEncoding == ActionEncoding.SELECTOR) {
+            return ((BitVecNum) m.eval(selectorVar(step), true)).getInt();
+        }
+
+        for (int code = 0; code < nums.length + NOF_OPS; code++) {
+            if (m.eval(actionVar(step, code), true).isTrue()) {
+                return code;
+            }
+        }
+
+        return -1;
+    }
+
+    /** Nombre d'éléments de la pile après les k premières actions. */
+    private int stackSize(int[] actions, int k) {
+        int size = 0;
+
+        for (int step = 0; step < k; step++) {
+            size += actions[step] < nums.length ? 1 : -1;
+        }
+
+        return size;
+    }
+
+    /** Affiche le contenu de la pile en ASCII sur sdtout. */
+    private void printStackAtStep(Model m, int step) {
+        boolean flat    = stackEncoding == StackEncoding.FLAT;
+        int     nofIdxs = flat ? stackCapacity : maxNofSteps + 1;
+
+        for (int idx = 0; idx < nofIdxs; idx++) {
+            Expr res = flat
+                ? slotStateVar(step, idx)
+                : context.mkSelect(stackStateVar(step), context.mkInt(idx));
+            Expr resi = toInt(res);
+
+            if (m.eval(stackSizeIs(step, idx), true).isTrue()) {
+                out.print(" <| ");
+            } else {
+                out.print(" | ");
+            }
+
+            out.print(m.eval(resi, true));
+        }
+
+        if (flat && m.eval(stackSizeIs(step, stackCapacity), true).isTrue()) {
+            out.print(" <|");
+        }
+
+        out.println();
+    }
+
+    /** Affiche les cases de la pile en ASCII, le dessus de pile étant marqué par <|. */
+    private void printStack(long[] cells, int size) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int idx = 0; idx < cells.length; idx++) {
+            sb.append(idx == size ? " <| " : " | ").append(cells[idx]);
+        }
+
+        if (size == cells.length) {
+            sb.append(" <|");
+        }
+
+        out.println(sb);
+    }
+
+    /**
+     * Affiche le contenu d'un modèle m obtenu par BMC jusqu'à
+     * la profondeur steps. Les actions sont décodées (decodeActions) et
+     * la pile rejouée (replay) ; la pile est évaluée dans le modèle
+     * (printStackAtStep) si une valeur entière dépasse un long.
+     */
+    private void printModel(Model m, int steps) {
+        if (! verbose) {
+            return;
+        }
+
+        printProgram(decodeActions(m, steps), m);
+    }
+
+    /**
+     * Affiche chaque action du programme et la pile qui en résulte,
+     * rejouée en arithmétique native ou, si une valeur dépasse un long,
+     * évaluée dans le modèle m de l'automate à pile (non affichée si m
+     * est null).
+     */
+    private void printProgram(int[] actions, Model m) {
+        if (! verbose) {
+            return;
+        }
+
+        long[][] cells = null;
+
+        try {
+            cells = replay(actions);
+        } catch (ArithmeticException e) {
+            // pile évaluée dans le modèle
+        }
+
+        out.print("init ~> ");
+
+        if (cells != null) {
+            printStack(cells[0], 0);
+        } else if (m != null) {
+            printStackAtStep(m, 0);
+        } else {
+            out.println();
+        }
+
+        for (int step = 0; step < actions.length; step++) {
+            int code = actions[step];
+
+            out.print((code < nums.length
+                       ? "push " + nums[code]
+                       : ChiffresResult.OP_NAMES[code - nums.length]) + " ~> ");
+
+            if (cells != null) {
+                printStack(cells[step + 1], stackSize(actions, step + 1));
+            } else if (m != null) {
+                printStackAtStep(m, step + 1);
+            } else {
+                out.println();
+            }
+        }
+    }
+
+    private void printParams() {
+        out.println("\nParameters:");
+        out.println("- bvBits     : " + String.valueOf(bvBits));
+        out.println("- noOverflows: " + String.valueOf(noOverflows));
+        out.println("- nums       : " + Arrays.toString(nums));
+        out.println("- target     : " + String.valueOf(target));
+
+        if (arithmetic == Arithmetic.INTEGER) {
+            out.println("- arithmetic : " + arithmetic);
+        } else if (adaptiveWidth) {
+            out.println("- width      : adaptive from " + minWidth());
+        }
+
+        if (gameRules || noIdentities) {
+            out.println("- rules      : " + (gameRules ? "game " : "") +
+                        (noIdentities ? "noIdentities" : ""));
+        }
     }
 }
@@ -0,0 +1,333 @@
+package fr.n7.smt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.z3.Context;
+import com.microsoft.z3.Status;
+
+/**
+ * Exécution concurrente d'un lot d'instances Chiffres lues dans un
+ * fichier. Chaque ligne du fichier décrit une instance :
+ *
+ *     nums,target,bvBits,noOverflows,deadlineMs
+ *
+ * où nums est une liste d'entiers séparés par des espaces et deadlineMs
+ * la durée maximale de la résolution (0 pour aucune). Les lignes vides
+ * et celles commençant par # sont ignorées.
+ *
+ * Les instances sont réparties sur un nombre fixe de threads, chacun
+ * possédant son propre contexte Z3 qu'il réutilise d'une instance à
+ * l'autre. Les résultats sont écrits dans l'ordre du fichier, en JSON
+ * lines ou en CSV si le fichier de sortie se termine par .csv, puis le
+ * débit et les latences p50/p95/p99 sont affichés par configuration
+ * (bvBits, noOverflows). Un cache de résultats (voir ChiffresCache)
+ * peut être partagé par tous les threads.
+ */
+public class ChiffresBatch {
+
+    /** Entête des lignes CSV, suivie de ChiffresResult.CSV_HEADER. */
+    static final String CSV_HEADER = "job,bvBits,noOverflows,deadlineMs,latencyMs,error,";
+
+    /** Cache partagé des résultats, null si aucun. */
+    static ChiffresCache cache = null;
+
+    /** Une instance à résoudre. */
+    static class Job {
+        final int     index;
+        final int[]   nums;
+        final int     target;
+        final int     bvBits;
+        final boolean noOverflows;
+        final long    deadlineMs;
+
+        /** Résultat, null si la résolution a échoué. */
+        ChiffresResult result;
+
+        /** Message de l'erreur, null si la résolution a abouti. */
+        String error;
+
+        long latencyMs;
+
+        /** Début et fin de la résolution (System.nanoTime). */
+        long startNanos;
+        long endNanos;
+
+        Job(int _index, int[] _nums, int _target, int _bvBits, boolean _noOverflows, long _deadlineMs) {
+            index       = _index;
+            nums        = _nums;
+            target      = _target;
+            bvBits      = _bvBits;
+            noOverflows = _noOverflows;
+            deadlineMs  = _deadlineMs;
+        }
+
+        /** Clé de la configuration, pour le résumé. */
+        String config() {
+            return "bvBits=" + bvBits + " noOverflows=" + noOverflows;
+        }
+    }
+
+    /** Lit les instances du fichier donné. */
+    static List<Job> readJobs(String path) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        int       line = 0;
+
+        for (String s : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            line++;
+            s = s.trim();
+
+            if (s.isEmpty() || s.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = s.split(",");
+
+            if (fields.length != 5) {
+                throw new IllegalArgumentException(path + ":" + line + ": 5 fields expected");
+            }
+
+            String[] tokens = fields[0].trim().split("\\s+");
+            int[]    nums   = fields[0].trim().isEmpty() ? new int[0] : new int[tokens.length];
+
+            for (int i = 0; i < nums.length; i++) {
+                nums[i] = Integer.parseInt(tokens[i]);
+            }
+
+            jobs.add(new Job(jobs.size(), nums,
+                             Integer.parseInt(fields[1].trim()),
+                             Integer.parseInt(fields[2].trim()),
+                             Boolean.parseBoolean(fields[3].trim()),
+                             Long.parseLong(fields[4].trim())));
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Résout une instance dans le contexte donné. Une erreur (par
+     * exemple une constante non représentable sur bvBits bits) est
+     * enregistrée dans l'instance au lieu d'interrompre le lot.
+     * Retourne faux si le contexte doit être recréé.
+     */
+    static boolean run(Context context, Job job) {
+        job.startNanos = System.nanoTime();
+
+        try (Chiffres chiffres = new Chiffres(context, job.nums, job.target,
+                                              job.bvBits, job.noOverflows)) {
+            chiffres.setVerbose(false);
+            chiffres.setCache(cache);
+
+            if (job.deadlineMs > 0) {
+                chiffres.setDeadline(System.currentTimeMillis() + job.deadlineMs);
+            }
+
+            job.result = chiffres.solveResult(0);
+        } catch (Throwable t) {
+            job.error = t.toString();
+        } finally {
+            job.endNanos  = System.nanoTime();
+            job.latencyMs = (job.endNanos - job.startNanos) / 1_000_000;
+        }
+
+        return job.error == null;
+    }
+
+    /**
+     * Résout toutes les instances avec nofWorkers threads. Chaque thread
+     * prend l'instance suivante non encore traitée, jusqu'à épuisement.
+     */
+    static void runAll(List<Job> jobs, int nofWorkers) throws InterruptedException {
+        AtomicInteger next    = new AtomicInteger();
+        Thread[]      workers = new Thread[nofWorkers];
+
+        for (int w = 0; w < nofWorkers; w++) {
+            workers[w] = new Thread(() -> {
+                Context context = Chiffres.mkContext();
+
+                try {
+                    for (int i = next.getAndIncrement(); i < jobs.size(); i = next.getAndIncrement()) {
+                        if (!run(context, jobs.get(i))) {
+                            context.close();
+                            context = Chiffres.mkContext();
+                        }
+                    }
+                } finally {
+                    context.close();
+                }
+            }, "chiffres-batch-" + w);
+
+            workers[w].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /** Écrit les résultats, en CSV si path se termine par .csv, en JSON lines sinon. */
+    static void write(List<Job> jobs, String path) throws IOException {
+        boolean csv = path.endsWith(".csv");
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path),
+                                                                       StandardCharsets.UTF_8))) {
+            if (csv) {
+                out.println(CSV_HEADER + ChiffresResult.CSV_HEADER);
+            }
+
+            for (Job job : jobs) {
+                out.println(csv ? toCsv(job) : toJson(job));
+            }
+        }
+    }
+
+    static String toCsv(Job job) {
+        String prefix = job.index + "," + job.bvBits + "," + job.noOverflows + "," +
+            job.deadlineMs + "," + job.latencyMs + "," +
+            (job.error == null ? "" : "\"" + job.error.replace("\"", "\"\"") + "\"") + ",";
+
+        if (job.result != null) {
+            return prefix + job.result.toCsv();
+        }
+
+        String nums = Arrays.toString(job.nums).replaceAll("[\\[\\],]", "");
+
+        return prefix + nums + "," + job.target + ",ERROR,ERROR,false,,-1,0,,0,0,0";
+    }
+
+    static String toJson(Job job) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"job\":").append(job.index);
+        sb.append(",\"bvBits\":").append(job.bvBits);
+        sb.append(",\"noOverflows\":").append(job.noOverflows);
+        sb.append(",\"deadlineMs\":").append(job.deadlineMs);
+        sb.append(",\"latencyMs\":").append(job.latencyMs);
+
+        if (job.error == null) {
+            sb.append(",\"error\":null");
+        } else {
+            sb.append(",\"error\":\"")
+              .append(job.error.replace("\\", "\\\\").replace("\"", "\\\""))
+              .append('"');
+        }
+
+        sb.append(",\"result\":").append(job.result == null ? "null" : job.result.toJson());
+
+        return sb.append('}').toString();
+    }
+
+    /** Percentile p (0 < p <= 100) par la méthode du rang le plus proche. */
+    static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Affiche par configuration le nombre d'instances, leur répartition
+     * (exactes, approchées, inconnues, erreurs), le débit (rapporté à
+     * l'intervalle entre le premier début et la dernière fin de ses
+     * résolutions) et les latences p50/p95/p99.
+     */
+    static void summarise(List<Job> jobs, long wallMs) {
+        Map<String, List<Job>> byConfig = new TreeMap<>();
+
+        for (Job job : jobs) {
+            byConfig.computeIfAbsent(job.config(), k -> new ArrayList<>()).add(job);
+        }
+
+        System.out.printf("%-30s %5s %5s %6s %5s %5s %9s %8s %8s %8s%n",
+                          "config", "jobs", "exact", "approx", "unkn", "err",
+                          "jobs/s", "p50 ms", "p95 ms", "p99 ms");
+
+        for (Map.Entry<String, List<Job>> e : byConfig.entrySet()) {
+            List<Job> group     = e.getValue();
+            long[]    latencies = new long[group.size()];
+            long      first     = Long.MAX_VALUE;
+            long      last      = Long.MIN_VALUE;
+            int       exact     = 0;
+            int       approx    = 0;
+            int       unknown   = 0;
+            int       errors    = 0;
+
+            for (int i = 0; i < group.size(); i++) {
+                Job job = group.get(i);
+
+                latencies[i] = job.latencyMs;
+                first        = Math.min(first, job.startNanos);
+                last         = Math.max(last, job.endNanos);
+
+                if (job.result == null) {
+                    errors++;
+                } else if (job.result.isExact()) {
+                    exact++;
+                } else if (job.result.getStatus() == Status.UNKNOWN) {
+                    unknown++;
+                } else {
+                    approx++;
+                }
+            }
+
+            Arrays.sort(latencies);
+
+            long spanMs = (last - first) / 1_000_000;
+
+            System.out.printf("%-30s %5d %5d %6d %5d %5d %9.2f %8d %8d %8d%n",
+                              e.getKey(), group.size(), exact, approx, unknown, errors,
+                              spanMs == 0 ? 0.0 : group.size() * 1000.0 / spanMs,
+                              percentile(latencies, 50),
+                              percentile(latencies, 95),
+                              percentile(latencies, 99));
+        }
+
+        System.out.printf("%d jobs in %d ms (%.2f jobs/s)%n", jobs.size(), wallMs,
+                          wallMs == 0 ? 0.0 : jobs.size() * 1000.0 / wallMs);
+    }
+
+    /** Usage : ChiffresBatch jobs out [workers [cache]]. */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: ChiffresBatch <jobs file> <out.jsonl|out.csv> [workers [cache file]]");
+            return;
+        }
+
+        int nofWorkers = args.length > 2 && !args[2].isEmpty()
+            ? Integer.parseInt(args[2])
+            : Runtime.getRuntime().availableProcessors();
+
+        if (args.length > 3) {
+            cache = new ChiffresCache(args[3], 10_000);
+        }
+
+        List<Job> jobs  = readJobs(args[0]);
+        long      start = System.nanoTime();
+
+        try {
+            runAll(jobs, Math.max(1, nofWorkers));
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+
+        long wallMs = (System.nanoTime() - start) / 1_000_000;
+
+        write(jobs, args[1]);
+        summarise(jobs, wallMs);
+
+        if (cache != null) {
+            System.out.println("cache: " + cache.getHits() + " hits, " +
+                               cache.getMisses() + " misses, " + cache.size() + " entries");
+        }
+    }
+}
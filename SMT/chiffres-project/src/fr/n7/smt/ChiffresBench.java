@@ -0,0 +1,613 @@
+package fr.n7.smt;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mesures de performance des options de Chiffres sur les instances
+ * de Main. Chaque mesure est une résolution complète (exacte puis
+ * approchée) silencieuse, dont on affiche les status (recherche exacte,
+ * puis dernière recherche) et la durée.
+ */
+public class ChiffresBench {
+
+    /** Timeout par profondeur de BMC, en millisecondes. */
+    static int timeout = 10_000;
+
+    static int     bvBits      = 14;
+    static boolean noOverflows = true;
+
+    /** Options d'une instance Chiffres à mesurer. */
+    private interface Setup {
+        void apply(Chiffres chiffres);
+    }
+
+    /** Résolution d'une instance Chiffres à mesurer, retourne ses status. */
+    private interface Solve {
+        String run(Chiffres chiffres);
+    }
+
+    /** Résolution complète : status exact et status final. */
+    static final Solve FULL = c -> {
+        ChiffresResult result = c.solveResult(timeout);
+
+        return result.getExactStatus() + "/" + result.getStatus();
+    };
+
+    /** Résolution dans un budget global de timeout ms : status et écart final. */
+    static final Solve SCHEDULED = c -> {
+        ChiffresResult result = c.solveScheduled(timeout);
+
+        return result.getExactStatus() + "/" + result.getStatus() + " d=" + result.getDistance();
+    };
+
+    /** Résolution mesurée par measure, complète par défaut. */
+    static Solve solve = FULL;
+
+    /**
+     * Résout une instance avec les options données et affiche une ligne
+     * de mesure. Retourne la durée en millisecondes.
+     */
+    static long measure(String label, int[] nums, int target, Setup setup) {
+        long   start = System.nanoTime();
+        String status;
+
+        try (Chiffres chiffres = new Chiffres(nums, target, bvBits, noOverflows)) {
+            chiffres.setVerbose(false);
+            setup.apply(chiffres);
+            status = solve.run(chiffres);
+        } catch (Error e) {
+            // constante non représentable sur bvBits bits
+            status = "ERROR";
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("%-8s %-6d %-10s %-27s %8d ms%n",
+                          label, target, nums.length + " nums", status, millis);
+
+        return millis;
+    }
+
+    /**
+     * Résout chaque instance de Main avec chacune des configurations
+     * et affiche le temps total par configuration.
+     */
+    static void compare(String[] labels, Setup[] setups) {
+        int[] widths = new int[setups.length];
+
+        Arrays.fill(widths, bvBits);
+        compare(labels, widths, setups);
+    }
+
+    /** Comme compare, la configuration k étant résolue sur widths[k] bits. */
+    static void compare(String[] labels, int[] widths, Setup[] setups) {
+        int    defaultBits = bvBits;
+        long[] totals      = new long[setups.length];
+
+        for (int i = 0; i < Main.nums.length; i++) {
+            for (int target : Main.target[i]) {
+                for (int k = 0; k < setups.length; k++) {
+                    bvBits     = widths[k];
+                    totals[k] += measure(labels[k], Main.nums[i], target, setups[k]);
+                }
+            }
+        }
+
+        bvBits = defaultBits;
+
+        for (int k = 0; k < setups.length; k++) {
+            System.out.println("total " + labels[k] + ": " + totals[k] + " ms");
+        }
+    }
+
+    /** Affiche le nombre de termes du déroulage complet de chaque instance. */
+    static void sizes(String[] labels, Setup[] setups) {
+        for (int[] nums : Main.nums) {
+            for (int k = 0; k < setups.length; k++) {
+                try (Chiffres chiffres = new Chiffres(nums, 0, bvBits, noOverflows)) {
+                    setups[k].apply(chiffres);
+                    System.out.printf("%-8s %-10s %8d terms%n", labels[k],
+                                      nums.length + " nums", chiffres.unrollingSize());
+                }
+            }
+        }
+    }
+
+    /** Compare les encodages ARRAY et FLAT de la pile sur Main.nums. */
+    public static void benchStackEncodings() {
+        compare(new String[] { "ARRAY", "FLAT" },
+                new Setup[] {
+                    c -> c.setStackEncoding(Chiffres.StackEncoding.ARRAY),
+                    c -> c.setStackEncoding(Chiffres.StackEncoding.FLAT)
+                });
+    }
+
+    /**
+     * Compare les encodages ONE_HOT et SELECTOR du choix des actions
+     * sur Main.nums : taille du déroulage puis temps de résolution.
+     */
+    public static void benchActionEncodings() {
+        String[] labels = { "ONE_HOT", "SELECTOR" };
+        Setup[]  setups = {
+            c -> c.setActionEncoding(Chiffres.ActionEncoding.ONE_HOT),
+            c -> c.setActionEncoding(Chiffres.ActionEncoding.SELECTOR)
+        };
+
+        sizes(labels, setups);
+        compare(labels, setups);
+    }
+
+    /**
+     * Compare la largeur adaptative (jusqu'à 32 bits) aux largeurs fixes
+     * de 14 et 32 bits sur Main.nums, sans débordements.
+     */
+    public static void benchWidths() {
+        compare(new String[] { "BV14", "BV32", "ADAPT32" },
+                new int[] { 14, 32, 32 },
+                new Setup[] {
+                    c -> {},
+                    c -> {},
+                    c -> c.setAdaptiveWidth(true)
+                });
+    }
+
+    /**
+     * Compare les arithmétiques BITVECTOR (bvBits bits) et INTEGER sur
+     * Main.nums : résolution complète (exacte, puis approchée si la cible
+     * n'est pas atteinte), puis résolution approchée seule.
+     */
+    public static void benchArithmetic() {
+        String[] labels = { "BV", "INT" };
+        Setup[]  setups = {
+            c -> c.setArithmetic(Chiffres.Arithmetic.BITVECTOR),
+            c -> c.setArithmetic(Chiffres.Arithmetic.INTEGER)
+        };
+
+        compare(labels, setups);
+
+        solve = c -> c.solveApprox(timeout).toString();
+        compare(new String[] { "BV~", "INT~" }, setups);
+        solve = FULL;
+    }
+
+    /**
+     * Compare la résolution sans et avec les règles du jeu (division
+     * exacte, soustraction positive) sur la matrice de Main.testAll :
+     * bvBits x noOverflows x instances.
+     */
+    public static void benchRules() {
+        boolean defaultNoOverflows = noOverflows;
+        String[] labels            = { "DEFAULT", "RULES" };
+        Setup[]  setups            = {
+            c -> {},
+            c -> c.setGameRules(true)
+        };
+
+        for (int bits : Main.bvBits) {
+            for (boolean _noOverflows : Main.noOverflows) {
+                System.out.println("bvBits=" + bits + " noOverflows=" + _noOverflows);
+                noOverflows = _noOverflows;
+                compare(labels, new int[] { bits, bits }, setups);
+            }
+        }
+
+        noOverflows = defaultNoOverflows;
+    }
+
+    /** Octets alloués sur le tas Java par le thread courant. */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Compare le déroulage des transitions reconstruites à chaque pas
+     * au déroulage par gabarit (Chiffres.setTemplateUnrolling), pour
+     * chaque tirage de Main.nums et chaque encodage de la pile : temps
+     * et allocations Java du déroulage complet (Chiffres.unroll) dans un
+     * contexte neuf, puis résolution complète des instances de Main.
+     */
+    public static void benchUnrolling() {
+        String[] labels = { "REBUILD", "TEMPLATE" };
+
+        for (int[] nums : Main.nums) {
+            for (Chiffres.StackEncoding encoding : Chiffres.StackEncoding.values()) {
+                for (int k = 0; k < labels.length; k++) {
+                    try (Chiffres chiffres = new Chiffres(nums, 0, bvBits, noOverflows)) {
+                        chiffres.setStackEncoding(encoding);
+                        chiffres.setTemplateUnrolling(k == 1);
+
+                        long bytes = allocatedBytes();
+                        long start = System.nanoTime();
+
+                        chiffres.unroll();
+
+                        System.out.printf("%-8s %-6s %-10s %8.2f ms %8d KB%n", labels[k], encoding,
+                                          nums.length + " nums",
+                                          (System.nanoTime() - start) / 1e6,
+                                          (allocatedBytes() - bytes) / 1024);
+                    }
+                }
+            }
+        }
+
+        compare(labels, new Setup[] { c -> {}, c -> c.setTemplateUnrolling(true) });
+    }
+
+    /**
+     * Compare sur les instances de Main la résolution complète avec un
+     * timeout de timeout ms par profondeur à la résolution dans un budget
+     * global de timeout ms (Chiffres.solveScheduled), sans puis avec
+     * vérification préalable des deux profondeurs les plus profondes.
+     */
+    public static void benchBudget() {
+        solve = c -> {
+            ChiffresResult result = c.solveResult(timeout);
+
+            return result.getExactStatus() + "/" + result.getStatus() + " d=" + result.getDistance();
+        };
+        compare(new String[] { "DEPTH" }, new Setup[] { c -> {} });
+
+        solve = SCHEDULED;
+        compare(new String[] { "BUDGET", "SKIP2" }, new Setup[] { c -> {}, c -> c.setSkipAhead(2) });
+        solve = FULL;
+    }
+
+    /**
+     * Compare la résolution exacte par profondeur à la résolution par
+     * formes (Chiffres.solveShapes) sur 1 et 2 workers.
+     */
+    public static void benchShapes() {
+        compare(new String[] { "DEPTH", "SHAPES", "SHAPES2" },
+                new Setup[] {
+                    c -> {},
+                    c -> c.setShapeSplit(true),
+                    c -> {
+                        c.setShapeSplit(true);
+                        c.setParallelism(2);
+                    }
+                });
+    }
+
+    /**
+     * Compare l'automate à pile et l'arbre d'expression, en résolution
+     * complète (exacte puis approchée) puis en résolution approchée
+     * seule dans un budget de timeout ms (écart final).
+     */
+    public static void benchTree() {
+        String[] labels = { "STACK", "TREE" };
+        Setup[]  setups = {
+            c -> c.setProgramEncoding(Chiffres.ProgramEncoding.STACK),
+            c -> c.setProgramEncoding(Chiffres.ProgramEncoding.TREE)
+        };
+
+        compare(labels, setups);
+
+        solve = c -> {
+            ChiffresResult result = c.solveApproxResult(timeout);
+
+            return "APPROX " + result.getStatus() + " d=" + result.getDistance();
+        };
+        compare(labels, setups);
+        solve = FULL;
+    }
+
+    /**
+     * Compare la résolution complète sans puis avec les invariants
+     * d'élagage du BMC (Chiffres.setPruning), avec le nombre d'appels au
+     * solveur de chaque résolution.
+     */
+    public static void benchPruning() {
+        solve = c -> {
+            ChiffresResult result = c.solveResult(timeout);
+
+            return result.getExactStatus() + "/" + result.getStatus() + " checks=" + c.getNofChecks();
+        };
+        compare(new String[] { "NONE", "PRUNING" },
+                new Setup[] { c -> {}, c -> c.setPruning(true) });
+        solve = FULL;
+    }
+
+    /**
+     * Résolution approchée seule (Chiffres.solveApproxResult, budget de
+     * timeout ms) sans amorce (NONE), amorcée par une recherche en
+     * faisceau de largeur width (BEAM), puis avec en plus les
+     * indications de phase (HINTS) : écart final, délai jusqu'au
+     * programme finalement retenu (time-to-optimal) et durée totale.
+     */
+    public static void benchSeeding(int width) {
+        String[] labels = { "NONE", "BEAM", "HINTS" };
+
+        for (int i = 0; i < Main.nums.length; i++) {
+            for (int target : Main.target[i]) {
+                String instance = String.format("%-6d %-10s", target, Main.nums[i].length + " nums");
+
+                for (int k = 0; k < labels.length; k++) {
+                    try (Chiffres chiffres = new Chiffres(Main.nums[i], target, bvBits, noOverflows)) {
+                        chiffres.setVerbose(false);
+                        chiffres.setBeamSeed(k > 0 ? width : 0);
+                        chiffres.setPhaseHints(k > 1);
+
+                        long           start  = System.nanoTime();
+                        ChiffresResult result = chiffres.solveApproxResult(timeout);
+                        long           total  = (System.nanoTime() - start) / 1_000_000;
+                        long           best   = result.hasProgram()
+                            ? (chiffres.getImprovedNanos() - start) / 1_000_000
+                            : -1;
+
+                        System.out.printf("%s %-6s d=%-5d %-14s optimal after %8d ms, total %8d ms%n",
+                                          instance, labels[k], result.getDistance(), result.getStatus(),
+                                          best, total);
+                    } catch (Error e) {
+                        System.out.printf("%s %-6s ERROR%n", instance, labels[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Les k meilleurs programmes de chaque instance de Main en une
+     * session (Chiffres.topK, timeout ms par appel au solveur) : écarts
+     * et longueurs des réponses, nombre d'appels au solveur et durée,
+     * comparée à k sessions séparées (RERUN) : la i-ème, sur une
+     * nouvelle instance, recalcule les i - 1 réponses précédentes pour
+     * les bloquer avant de trouver la i-ème (somme des durées de
+     * topK(1), ..., topK(k)).
+     */
+    public static void benchTopK(int k) {
+        for (int i = 0; i < Main.nums.length; i++) {
+            for (int target : Main.target[i]) {
+                String instance = String.format("%-6d %-10s", target, Main.nums[i].length + " nums");
+
+                try (Chiffres chiffres = new Chiffres(Main.nums[i], target, bvBits, noOverflows)) {
+                    chiffres.setVerbose(false);
+
+                    long                 start   = System.nanoTime();
+                    List<ChiffresResult> results = chiffres.topK(k, timeout);
+                    long                 topK    = (System.nanoTime() - start) / 1_000_000;
+                    StringBuilder        ranks   = new StringBuilder();
+
+                    for (ChiffresResult result : results) {
+                        ranks.append(" ").append(result.getDistance()).append("/").append(result.getLength());
+                    }
+
+                    System.out.printf("%s TOPK     %d checks %8d ms:%s%n", instance,
+                                      chiffres.getNofChecks(), topK, ranks);
+                } catch (Error e) {
+                    System.out.printf("%s ERROR%n", instance);
+                    continue;
+                }
+
+                long rerun = 0;
+
+                for (int j = 1; j <= k; j++) {
+                    try (Chiffres chiffres = new Chiffres(Main.nums[i], target, bvBits, noOverflows)) {
+                        chiffres.setVerbose(false);
+
+                        long start = System.nanoTime();
+
+                        chiffres.topK(j, timeout);
+                        rerun += (System.nanoTime() - start) / 1_000_000;
+                    }
+                }
+
+                System.out.printf("%s RERUN    %8d ms%n", instance, rerun);
+            }
+        }
+    }
+
+    /**
+     * Compare, pour chaque tirage de Main.nums, le balayage des cibles
+     * lo..hi en une passe (Chiffres.sweep) à une résolution par cible.
+     */
+    public static void benchSweep(int lo, int hi) {
+        for (int[] nums : Main.nums) {
+            long start = System.nanoTime();
+            int  exact = 0;
+
+            try (Chiffres chiffres = new Chiffres(nums, 0, bvBits, noOverflows)) {
+                chiffres.setVerbose(false);
+
+                for (ChiffresResult result : chiffres.sweep(lo, hi, timeout).values()) {
+                    exact += result.isExact() ? 1 : 0;
+                }
+            }
+
+            long sweepMillis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.printf("%-8s %-10s %4d exact %8d ms%n",
+                              "sweep", nums.length + " nums", exact, sweepMillis);
+
+            start = System.nanoTime();
+            exact = 0;
+
+            for (int target = lo; target <= hi; target++) {
+                try (Chiffres chiffres = new Chiffres(nums, target, bvBits, noOverflows)) {
+                    chiffres.setVerbose(false);
+                    exact += chiffres.solveResult(timeout).isExact() ? 1 : 0;
+                }
+            }
+
+            System.out.printf("%-8s %-10s %4d exact %8d ms%n", "single", nums.length + " nums",
+                              exact, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Résolution anytime (Chiffres.solveAnytime) de chaque instance de
+     * Main avec un budget de budget ms : affiche le délai et l'écart de
+     * la première et de la dernière amélioration, puis le status final.
+     */
+    public static void benchAnytime(int budget) {
+        for (int i = 0; i < Main.nums.length; i++) {
+            for (int target : Main.target[i]) {
+                try (Chiffres chiffres = new Chiffres(Main.nums[i], target, bvBits, noOverflows)) {
+                    chiffres.setVerbose(false);
+
+                    long   start  = System.nanoTime();
+                    long[] first  = { -1, -1 };
+                    long[] last   = { -1, -1 };
+                    int[]  nofImp = { 0 };
+
+                    ChiffresResult result = chiffres.solveAnytime(budget, r -> {
+                        long millis = (System.nanoTime() - start) / 1_000_000;
+
+                        if (first[0] < 0) {
+                            first[0] = millis;
+                            first[1] = r.getDistance();
+                        }
+
+                        last[0] = millis;
+                        last[1] = r.getDistance();
+                        nofImp[0]++;
+                    });
+
+                    System.out.printf("%-6d %-10s first %6d ms (%4d) last %6d ms (%4d) %3d improvements %-14s %8d ms%n",
+                                      target, Main.nums[i].length + " nums",
+                                      first[0], first[1], last[0], last[1], nofImp[0],
+                                      result.getStatus(), (System.nanoTime() - start) / 1_000_000);
+                } catch (Error e) {
+                    System.out.printf("%-6d %-10s ERROR%n", target, Main.nums[i].length + " nums");
+                }
+            }
+        }
+    }
+
+    /**
+     * Qualité au cours du temps de la recherche locale (distance du
+     * meilleur programme après 10 ms, 100 ms, 1 s et budget ms),
+     * comparée à la recherche approchée par optimisation seule (APPROX)
+     * et amorcée par budget / 10 ms de recherche locale (SEEDED), sur
+     * les instances unitaires de Main (dont celle sans constante) puis
+     * sur ses instances de test.
+     */
+    public static void benchLocal(int budget) {
+        long[] checkpoints = { 10, 100, 1000, budget };
+
+        for (int[] nums : Main.numsUnit) {
+            local(nums, Main.targetsUnit[0], budget, checkpoints);
+        }
+
+        for (int i = 0; i < Main.nums.length; i++) {
+            for (int target : Main.target[i]) {
+                local(Main.nums[i], target, budget, checkpoints);
+            }
+        }
+    }
+
+    /** Une instance de benchLocal. */
+    static void local(int[] nums, int target, int budget, long[] checkpoints) {
+        String instance = String.format("%-6d %-10s", target, nums.length + " nums");
+
+        try (Chiffres chiffres = new Chiffres(nums, target, bvBits, noOverflows)) {
+            chiffres.setVerbose(false);
+
+            long   start     = System.nanoTime();
+            long[] distances = new long[checkpoints.length];
+
+            Arrays.fill(distances, -1);
+
+            ChiffresResult local = chiffres.solveLocal(budget, r -> {
+                long millis = (System.nanoTime() - start) / 1_000_000;
+
+                for (int k = 0; k < checkpoints.length; k++) {
+                    if (millis <= checkpoints[k]) {
+                        distances[k] = r.getDistance();
+                    }
+                }
+            });
+
+            System.out.printf("%s LOCAL  %s -> %d (%d ms)%n", instance, Arrays.toString(distances),
+                              local.getDistance(), (System.nanoTime() - start) / 1_000_000);
+
+            for (int seed : new int[] { 0, budget / 10 }) {
+                long t0 = System.nanoTime();
+
+                chiffres.setLocalSeed(seed);
+
+                ChiffresResult approx = chiffres.solveApproxResult(budget);
+
+                System.out.printf("%s %-6s %d %-14s (%d ms)%n", instance, seed == 0 ? "APPROX" : "SEEDED",
+                                  approx.getDistance(),
+                                  approx.getStatus(), (System.nanoTime() - t0) / 1_000_000);
+            }
+        } catch (Error e) {
+            System.out.printf("%s ERROR%n", instance);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 1) {
+            timeout = Integer.parseInt(args[1]);
+        }
+
+        switch (args.length > 0 ? args[0] : "stack") {
+        case "stack":
+            benchStackEncodings();
+            break;
+
+        case "action":
+            benchActionEncodings();
+            break;
+
+        case "arith":
+            benchArithmetic();
+            break;
+
+        case "rules":
+            benchRules();
+            break;
+
+        case "width":
+            benchWidths();
+            break;
+
+        case "sweep":
+            benchSweep(args.length > 3 ? Integer.parseInt(args[2]) : 100,
+                       args.length > 3 ? Integer.parseInt(args[3]) : 999);
+            break;
+
+        case "unroll":
+            benchUnrolling();
+            break;
+
+        case "budget":
+            benchBudget();
+            break;
+
+        case "anytime":
+            benchAnytime(timeout);
+            break;
+
+        case "local":
+            benchLocal(timeout);
+            break;
+
+        case "shapes":
+            benchShapes();
+            break;
+
+        case "tree":
+            benchTree();
+            break;
+
+        case "pruning":
+            benchPruning();
+            break;
+
+        case "topk":
+            benchTopK(args.length > 2 ? Integer.parseInt(args[2]) : 5);
+            break;
+
+        case "seeding":
+            benchSeeding(args.length > 2 ? Integer.parseInt(args[2]) : 100);
+            break;
+
+        default:
+            System.out.println("unknown benchmark " + args[0]);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package fr.n7.smt;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.microsoft.z3.Status;
+
+/**
+ * Cache persistant des résultats de Chiffres. La clé d'une instance est
+ * le multi-ensemble trié de ses constantes, la cible, bvBits (0 pour
+ * l'arithmétique entière), noOverflows et les options qui changent
+ * l'ensemble des programmes valides (voir Chiffres.cacheOptions) : deux
+ * tirages égaux à permutation près partagent donc leur entrée. Le
+ * programme est conservé sous forme de valeurs (et non d'indices de
+ * constantes), puis réindicé sur les constantes de l'instance demandée.
+ *
+ * Seuls les résultats définitifs sont conservés : cible atteinte, ou
+ * prouvée inaccessible (recherche exacte UNSATISFIABLE) avec le
+ * meilleur programme d'une recherche approchée terminée (status
+ * SATISFIABLE). Un résultat interrompu par un timeout ou une date
+ * limite pourrait être amélioré par une résolution plus longue.
+ *
+ * Les entrées sont ajoutées à la fin d'un fichier projeté en mémoire,
+ * jamais réécrites ; une entrée plus récente pour la même clé masque les
+ * précédentes. Chaque enregistrement est un entier (taille) suivi du
+ * texte UTF-8 de l'entrée, la taille étant écrite après le texte : un
+ * enregistrement interrompu a une taille nulle et marque la fin du
+ * fichier à la réouverture. Les capacity dernières entrées utilisées
+ * sont gardées décodées en mémoire (LRU), les autres sont relues dans le
+ * fichier à partir de leur position.
+ */
+public class ChiffresCache implements AutoCloseable {
+
+    /** Taille initiale du fichier, doublée à chaque débordement. */
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    /** Une entrée décodée, indépendante de l'ordre des constantes. */
+    private static class Entry {
+        final Status   exactStatus;
+        final Status   status;
+        final long     value;
+
+        /** Programme en valeurs et noms d'opérateurs. */
+        final String[] program;
+
+        Entry(Status _exactStatus, Status _status, long _value, String[] _program) {
+            exactStatus = _exactStatus;
+            status      = _status;
+            value       = _value;
+            program     = _program;
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer  buffer;
+
+    /** Position de fin du dernier enregistrement. */
+    private int end;
+
+    /** Position du dernier enregistrement de chaque clé. */
+    private final Map<String, Integer> offsets = new HashMap<>();
+
+    /** Entrées décodées les plus récemment utilisées. */
+    private final LinkedHashMap<String, Entry> recent;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Ouvre (ou crée) le cache stocké dans le fichier path, en gardant
+     * au plus capacity entrées décodées en mémoire.
+     */
+    public ChiffresCache(String path, int capacity) throws IOException {
+        channel = FileChannel.open(Paths.get(path),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        buffer  = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                              Math.max(INITIAL_SIZE, channel.size()));
+        recent  = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        // index des enregistrements existants
+        end = 0;
+
+        while (end + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+
+            if (length <= 0 || end + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            String record = read(end);
+            offsets.put(record.substring(0, record.indexOf('\t')), end);
+            end += 4 + length;
+        }
+    }
+
+    /**
+     * Clé de l'instance : constantes triées, cible, bvBits, noOverflows
+     * et options.
+     */
+    static String key(int[] nums, int target, int bvBits, boolean noOverflows, String options) {
+        int[] sorted = nums.clone();
+        Arrays.sort(sorted);
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < sorted.length; i++) {
+            sb.append(i > 0 ? " " : "").append(sorted[i]);
+        }
+
+        return sb.append('|').append(target)
+                 .append('|').append(bvBits)
+                 .append('|').append(noOverflows)
+                 .append('|').append(options).toString();
+    }
+
+    /** Vrai ssi le résultat est définitif et peut donc être conservé. */
+    public static boolean isReusable(ChiffresResult result) {
+        return result.isExact()
+            || (result.getExactStatus() == Status.UNSATISFIABLE
+                && result.getStatus() == Status.SATISFIABLE
+                && result.hasProgram());
+    }
+
+    /**
+     * Résultat conservé pour l'instance, exprimé sur les constantes nums
+     * (dans leur ordre), ou null s'il n'y en a pas.
+     */
+    public synchronized ChiffresResult get(int[] nums, int target, int bvBits, boolean noOverflows,
+                                           String options) {
+        String key   = key(nums, target, bvBits, noOverflows, options);
+        Entry  entry = recent.get(key);
+
+        if (entry == null) {
+            Integer offset = offsets.get(key);
+
+            if (offset != null) {
+                entry = decode(read(offset));
+                recent.put(key, entry);
+            }
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+
+        return new ChiffresResult(nums, target, entry.exactStatus, entry.status,
+                                  actions(nums, entry.program), entry.value, 0, 0, 0);
+    }
+
+    /** Conserve le résultat s'il est définitif. */
+    public synchronized void put(int bvBits, boolean noOverflows, String options,
+                                 ChiffresResult result) throws IOException {
+        if (!isReusable(result)) {
+            return;
+        }
+
+        String key    = key(result.getNums(), result.getTarget(), bvBits, noOverflows, options);
+        Entry  entry  = new Entry(result.getExactStatus(), result.getStatus(),
+                                  result.getValue(), result.program());
+        byte[] record = (key + '\t' + entry.exactStatus + '\t' + entry.status + '\t' +
+                         entry.value + '\t' + String.join(" ", entry.program))
+            .getBytes(StandardCharsets.UTF_8);
+
+        while (end + 4 + record.length + 4 > buffer.capacity()) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * buffer.capacity());
+        }
+
+        for (int i = 0; i < record.length; i++) {
+            buffer.put(end + 4 + i, record[i]);
+        }
+
+        buffer.putInt(end, record.length);
+
+        offsets.put(key, end);
+        recent.put(key, entry);
+        end += 4 + record.length;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Nombre d'instances distinctes conservées. */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /** Force l'écriture sur disque et ferme le fichier. */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private String read(int offset) {
+        byte[] bytes = new byte[buffer.getInt(offset)];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Entry decode(String record) {
+        String[] fields  = record.split("\t", -1);
+        String[] program = fields[4].isEmpty() ? new String[0] : fields[4].split(" ");
+
+        return new Entry(Status.valueOf(fields[1]), Status.valueOf(fields[2]),
+                         Long.parseLong(fields[3]), program);
+    }
+
+    /**
+     * Codes des actions du programme sur les constantes nums : chaque
+     * valeur est associée à la première constante de cette valeur
+     * encore inutilisée.
+     */
+    private static int[] actions(int[] nums, String[] program) {
+        int[]     actions = new int[program.length];
+        boolean[] used    = new boolean[nums.length];
+
+        for (int step = 0; step < program.length; step++) {
+            int op = Arrays.asList(ChiffresResult.OP_NAMES).indexOf(program[step]);
+
+            if (op >= 0) {
+                actions[step] = nums.length + op;
+                continue;
+            }
+
+            int value = Integer.parseInt(program[step]);
+            int i     = 0;
+
+            while (used[i] || nums[i] != value) {
+                i++;
+            }
+
+            used[i]       = true;
+            actions[step] = i;
+        }
+
+        return actions;
+    }
+}
@@ -0,0 +1,208 @@
+package fr.n7.smt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.microsoft.z3.Context;
+import com.microsoft.z3.Params;
+import com.microsoft.z3.Solver;
+import com.microsoft.z3.Status;
+import com.microsoft.z3.Z3Exception;
+
+/**
+ * Corpus de requêtes SMT-LIB2 des déroulages Chiffres, pour mesurer le
+ * comportement du solveur indépendamment de l'encodeur Java.
+ *
+ *     ChiffresReplay export dir
+ *
+ * exporte (Chiffres.exportSmtLib) chaque profondeur de chaque instance
+ * de la matrice de Main.testAll (bvBits x noOverflows x instances) dans
+ * le répertoire dir.
+ *
+ *     ChiffresReplay replay path... [-p name=value,name=value]...
+ *
+ * charge chaque fichier .smt2 (ou ceux des répertoires donnés) dans un
+ * contexte neuf et chronomètre check() sous chaque jeu de paramètres Z3
+ * introduit par -p (un jeu vide si aucun). Une ligne CSV est affichée
+ * par fichier et par jeu de paramètres, puis un résumé par jeu.
+ */
+public class ChiffresReplay {
+
+    /** Entête des lignes affichées par replay. */
+    static final String CSV_HEADER = "file,params,status,checkMs";
+
+    /**
+     * Exporte les requêtes de toutes les instances de Main.testAll dans
+     * dir. Retourne le nombre de fichiers écrits.
+     */
+    static int export(String dir) throws IOException {
+        int nofFiles = 0;
+
+        for (int bvBits : Main.bvBits) {
+            for (boolean noOverflows : Main.noOverflows) {
+                for (int i = 0; i < Main.nums.length; i++) {
+                    for (int target : Main.target[i]) {
+                        String prefix = "chiffres-" + Main.nums[i].length + "nums-" + target +
+                            "-bv" + bvBits + (noOverflows ? "-noov" : "");
+
+                        try (Chiffres chiffres = new Chiffres(Main.nums[i], target, bvBits, noOverflows)) {
+                            nofFiles += chiffres.exportSmtLib(dir, prefix).size();
+                        } catch (Error e) {
+                            // constante non représentable sur bvBits bits
+                            System.out.println(prefix + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+
+        return nofFiles;
+    }
+
+    /** Fichiers .smt2 des chemins donnés, triés, les répertoires étant parcourus. */
+    static List<Path> corpus(List<String> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+
+        for (String path : paths) {
+            Path p = Paths.get(path);
+
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> walk = Files.walk(p)) {
+                    files.addAll(walk.filter(f -> f.toString().endsWith(".smt2"))
+                                     .collect(Collectors.toList()));
+                }
+            } else {
+                files.add(p);
+            }
+        }
+
+        Collections.sort(files);
+
+        return files;
+    }
+
+    /**
+     * Jeu de paramètres Z3 décrit par "name=value,name=value". Les
+     * valeurs true/false sont booléennes, les valeurs numériques
+     * entières ou décimales, les autres des symboles.
+     */
+    static Params params(Context context, String spec) {
+        Params params = context.mkParams();
+
+        for (String pair : spec.split(",")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+
+            int eq = pair.indexOf('=');
+
+            if (eq < 0) {
+                throw new IllegalArgumentException("name=value expected: " + pair);
+            }
+
+            String name  = pair.substring(0, eq);
+            String value = pair.substring(eq + 1);
+
+            if (value.equals("true") || value.equals("false")) {
+                params.add(name, Boolean.parseBoolean(value));
+            } else if (value.matches("-?\\d+")) {
+                params.add(name, Integer.parseInt(value));
+            } else if (value.matches("-?\\d*\\.\\d+")) {
+                params.add(name, Double.parseDouble(value));
+            } else {
+                params.add(name, context.mkSymbol(value));
+            }
+        }
+
+        return params;
+    }
+
+    /**
+     * Charge le fichier dans un contexte neuf et chronomètre check() sous
+     * les paramètres spec. Affiche et retourne la durée en millisecondes ;
+     * une erreur de Z3 est affichée avec le status ERROR.
+     */
+    static long replay(Path file, String spec, int[] counts) {
+        String status;
+        long   millis = 0;
+
+        try (Context context = Chiffres.mkContext()) {
+            Solver solver = context.mkSolver();
+
+            solver.fromFile(file.toString());
+            solver.setParameters(params(context, spec));
+
+            long   start  = System.nanoTime();
+            Status result = solver.check();
+
+            millis = (System.nanoTime() - start) / 1_000_000;
+            status = result.toString();
+            counts[result.ordinal()]++;
+        } catch (Z3Exception e) {
+            status = "ERROR";
+            counts[Status.values().length]++;
+        }
+
+        System.out.println(file.getFileName() + ",\"" + spec + "\"," + status + "," + millis);
+
+        return millis;
+    }
+
+    /** Usage : ChiffresReplay export dir | replay path... [-p params]... */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("export")) {
+            System.out.println(export(args[1]) + " files written to " + args[1]);
+            return;
+        }
+
+        if (args.length < 2 || !args[0].equals("replay")) {
+            System.out.println("usage: ChiffresReplay export <dir>");
+            System.out.println("       ChiffresReplay replay <dir|file.smt2>... [-p name=value,...]...");
+            return;
+        }
+
+        List<String> paths = new ArrayList<>();
+        List<String> specs = new ArrayList<>();
+
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-p") && i + 1 < args.length) {
+                specs.add(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        if (specs.isEmpty()) {
+            specs.add("");
+        }
+
+        List<Path> files  = corpus(paths);
+        long[]     totals = new long[specs.size()];
+        int[][]    counts = new int[specs.size()][Status.values().length + 1];
+
+        System.out.println(CSV_HEADER);
+
+        for (Path file : files) {
+            for (int k = 0; k < specs.size(); k++) {
+                totals[k] += replay(file, specs.get(k), counts[k]);
+            }
+        }
+
+        for (int k = 0; k < specs.size(); k++) {
+            System.out.printf("total \"%s\": %d ms, %d files (", specs.get(k), totals[k], files.size());
+
+            for (Status s : Status.values()) {
+                System.out.print(s + " " + counts[k][s.ordinal()] + ", ");
+            }
+
+            System.out.println("ERROR " + counts[k][Status.values().length] + ")");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package fr.n7.smt;
+
+import java.util.Arrays;
+
+import com.microsoft.z3.Status;
+
+/**
+ * Résultat d'une résolution Chiffres, décodé du modèle Z3 : programme
+ * RPN trouvé, valeur atteinte, distance à la cible, status et temps
+ * passé dans chaque phase (construction des formules, résolution,
+ * décodage des modèles). Ne référence aucun objet Z3, et peut donc
+ * survivre au contexte qui l'a produit.
+ */
+public class ChiffresResult {
+
+    /** Noms des opérateurs, indicés par Chiffres.MUL, DIV, ADD et SUB. */
+    static final String[] OP_NAMES = { "mul", "div", "add", "sub" };
+
+    /** Entête des lignes produites par toCsv. */
+    public static final String CSV_HEADER =
+        "nums,target,exactStatus,status,exact,value,distance,length,program,encodeUs,solveUs,decodeUs";
+
+    private final int[]  nums;
+    private final int    target;
+
+    /**
+     * Status de la recherche exacte : SATISFIABLE si la cible est
+     * atteinte, UNSATISFIABLE s'il est prouvé qu'elle ne peut pas
+     * l'être, UNKNOWN si la recherche a été interrompue.
+     */
+    private final Status exactStatus;
+
+    /** Status de la dernière recherche (exacte, ou approchée ensuite). */
+    private final Status status;
+
+    /**
+     * Codes des actions du programme (voir Chiffres.MUL), null si
+     * aucun programme n'a été trouvé.
+     */
+    private final int[]  actions;
+
+    /** Valeur du dessus de pile à la fin du programme. */
+    private final long   value;
+
+    private final long   encodeNanos;
+    private final long   solveNanos;
+    private final long   decodeNanos;
+
+    ChiffresResult(int[] _nums, int _target, Status _exactStatus, Status _status,
+                   int[] _actions, long _value,
+                   long _encodeNanos, long _solveNanos, long _decodeNanos) {
+        nums        = _nums;
+        target      = _target;
+        exactStatus = _exactStatus;
+        status      = _status;
+        actions     = _actions;
+        value       = _value;
+        encodeNanos = _encodeNanos;
+        solveNanos  = _solveNanos;
+        decodeNanos = _decodeNanos;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Status getExactStatus() {
+        return exactStatus;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public int[] getNums() {
+        return nums.clone();
+    }
+
+    /** Vrai ssi un programme a été trouvé. */
+    public boolean hasProgram() {
+        return actions != null;
+    }
+
+    /** Vrai ssi le programme trouvé atteint exactement la cible. */
+    public boolean isExact() {
+        return hasProgram() && value == target;
+    }
+
+    /** Codes des actions du programme, ou null si aucun programme. */
+    public int[] getActions() {
+        return actions == null ? null : actions.clone();
+    }
+
+    /** Nombre d'actions du programme, 0 si aucun programme. */
+    public int getLength() {
+        return actions == null ? 0 : actions.length;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /** Écart absolu entre la valeur atteinte et la cible, -1 si aucun programme. */
+    public long getDistance() {
+        return actions == null ? -1 : Math.abs(target - value);
+    }
+
+    public long getEncodeMicros() {
+        return encodeNanos / 1000;
+    }
+
+    public long getSolveMicros() {
+        return solveNanos / 1000;
+    }
+
+    public long getDecodeMicros() {
+        return decodeNanos / 1000;
+    }
+
+    /**
+     * Programme RPN : la valeur de la constante pour un push, le nom
+     * de l'opérateur sinon. Un opérateur s'applique au dessus de pile
+     * e1 et à l'élément en dessous e2, dans cet ordre (e1 - e2, e1 / e2).
+     */
+    public String[] program() {
+        if (actions == null) {
+            return new String[0];
+        }
+
+        String[] tokens = new String[actions.length];
+
+        for (int step = 0; step < actions.length; step++) {
+            tokens[step] = token(actions[step]);
+        }
+
+        return tokens;
+    }
+
+    private String token(int code) {
+        return code < nums.length
+            ? String.valueOf(nums[code])
+            : OP_NAMES[code - nums.length];
+    }
+
+    /** Une ligne CSV, colonnes dans l'ordre de CSV_HEADER. */
+    public String toCsv() {
+        return String.join(",",
+                           join(nums, " "),
+                           String.valueOf(target),
+                           exactStatus.toString(),
+                           status.toString(),
+                           String.valueOf(isExact()),
+                           hasProgram() ? String.valueOf(value) : "",
+                           String.valueOf(getDistance()),
+                           String.valueOf(getLength()),
+                           String.join(" ", program()),
+                           String.valueOf(getEncodeMicros()),
+                           String.valueOf(getSolveMicros()),
+                           String.valueOf(getDecodeMicros()));
+    }
+
+    /** Un objet JSON sur une ligne (format JSON lines). */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"nums\":[").append(join(nums, ",")).append(']');
+        sb.append(",\"target\":").append(target);
+        sb.append(",\"exactStatus\":\"").append(exactStatus).append('"');
+        sb.append(",\"status\":\"").append(status).append('"');
+        sb.append(",\"exact\":").append(isExact());
+
+        if (hasProgram()) {
+            sb.append(",\"value\":").append(value);
+        } else {
+            sb.append(",\"value\":null");
+        }
+
+        sb.append(",\"distance\":").append(getDistance());
+        sb.append(",\"length\":").append(getLength());
+        sb.append(",\"program\":[");
+
+        String[] tokens = program();
+
+        for (int i = 0; i < tokens.length; i++) {
+            sb.append(i > 0 ? ",\"" : "\"").append(tokens[i]).append('"');
+        }
+
+        sb.append("],\"encodeUs\":").append(getEncodeMicros());
+        sb.append(",\"solveUs\":").append(getSolveMicros());
+        sb.append(",\"decodeUs\":").append(getDecodeMicros());
+
+        return sb.append('}').toString();
+    }
+
+    private static String join(int[] values, String sep) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < values.length; i++) {
+            sb.append(i > 0 ? sep : "").append(values[i]);
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + Arrays.toString(program()) +
+            (hasProgram() ? " = " + value : "") + " (target " + target + ")";
+    }
+}
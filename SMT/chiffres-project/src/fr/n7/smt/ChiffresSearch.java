@@ -0,0 +1,669 @@
+package fr.n7.smt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import com.microsoft.z3.Status;
+
+/**
+ * Recherche locale stochastique (recuit simulé) sur les programmes RPN
+ * d'une instance Chiffres, en arithmétique native : aucune formule
+ * n'est construite.
+ *
+ * Le programme courant est un arbre d'expression dont les noeuds sont
+ * pris dans des tableaux alloués une fois pour toutes (2n - 1 noeuds
+ * pour n constantes). Chaque mutation (changement d'opérateur,
+ * échange des opérandes, changement de constante, ajout ou retrait
+ * d'une feuille) ne recalcule que les valeurs du chemin entre le noeud
+ * modifié et la racine, et se défait par la mutation inverse : une
+ * itération n'alloue rien.
+ *
+ * Les valeurs et les préconditions des opérateurs sont celles de
+ * l'instance (Chiffres.apply et Chiffres.allowed) : tout programme
+ * trouvé est donc un modèle du déroulage, et sa distance à la cible
+ * peut servir de borne au solveur (voir Chiffres.setLocalSeed).
+ *
+ * La recherche en faisceau (beam) est une alternative déterministe au
+ * recuit : elle construit les programmes préfixe par préfixe (voir
+ * Chiffres.setBeamSeed).
+ */
+public class ChiffresSearch {
+
+    /** Mutations. */
+    private static final int OP     = 0;
+    private static final int SWAP   = 1;
+    private static final int CONST  = 2;
+    private static final int GROW   = 3;
+    private static final int SHRINK = 4;
+
+    private static final int FREE = -1;
+
+    /** Nombre d'itérations d'une descente en température. */
+    private static final int ROUND = 100_000;
+
+    /** Température finale d'une descente. */
+    private static final double T_END = 0.05;
+
+    private final Chiffres chiffres;
+    private final int[]    nums;
+    private final int      target;
+    private final Random   random;
+
+    /**
+     * Arbre : kind vaut FREE, le code d'une constante (< n) pour une
+     * feuille ou n + opérateur. Le résultat d'un noeud est
+     * e1 op e2 (e1 au dessus de la pile).
+     */
+    private final int[]     kind;
+    private final int[]     e1;
+    private final int[]     e2;
+    private final int[]     parent;
+    private final long[]    value;
+    private final boolean[] valid;
+
+    /** Pile des noeuds libres. */
+    private final int[] free;
+    private int         nofFree;
+
+    /** Feuille portant chaque constante, -1 si elle est inutilisée. */
+    private final int[] leafOf;
+
+    private int root;
+
+    /** Nombre de noeuds de l'arbre (longueur du programme). */
+    private int size;
+
+    /** Mutation courante et de quoi la défaire. */
+    private int move;
+    private int undoNode;
+    private int undoArg;
+    private int undoOp;
+    private int undoSide;
+    private int undoLeaf;
+
+    /** Pile de construction de load. */
+    private final int[] stack;
+
+    private int[] bestActions;
+    private long  bestValue;
+    private long  iterations;
+
+    /**
+     * Préfixe de programme RPN de la recherche en faisceau : actions,
+     * pile résultante, constantes utilisées (bit c pour nums[c]) et
+     * plus petite distance d'un élément de la pile à la cible.
+     */
+    private static final class Prefix {
+        final int[]  actions;
+        final long[] stack;
+        final long   used;
+        final long   score;
+
+        Prefix(int[] _actions, long[] _stack, long _used, int target) {
+            long best = Long.MAX_VALUE;
+
+            for (long v : _stack) {
+                best = Math.min(best, Math.abs(target - v));
+            }
+
+            actions = _actions;
+            stack   = _stack;
+            used    = _used;
+            score   = best;
+        }
+
+        /** Clé de l'état atteint : deux préfixes de même clé ont le même avenir. */
+        String key() {
+            return used + Arrays.toString(stack);
+        }
+    }
+
+    public ChiffresSearch(Chiffres _chiffres, int[] _nums, int _target, long seed) {
+        chiffres = _chiffres;
+        nums     = _nums;
+        target   = _target;
+        random   = new Random(seed);
+
+        int capacity = Math.max(1, 2 * nums.length - 1);
+
+        kind   = new int[capacity];
+        e1     = new int[capacity];
+        e2     = new int[capacity];
+        parent = new int[capacity];
+        value  = new long[capacity];
+        valid  = new boolean[capacity];
+        free   = new int[capacity];
+        leafOf = new int[nums.length];
+        stack  = new int[capacity];
+    }
+
+    public int[] getBestActions() {
+        return bestActions;
+    }
+
+    public long getBestValue() {
+        return bestValue;
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    /** Distance à la cible du meilleur programme, -1 si aucun. */
+    public long getBestDistance() {
+        return bestActions == null ? -1 : Math.abs(target - bestValue);
+    }
+
+    /**
+     * Charge le programme RPN actions (valide) comme programme courant.
+     */
+    void load(int[] actions) {
+        nofFree = 0;
+
+        for (int i = kind.length - 1; i >= 0; i--) {
+            kind[i]         = FREE;
+            free[nofFree++] = i;
+        }
+
+        for (int c = 0; c < nums.length; c++) {
+            leafOf[c] = -1;
+        }
+
+        int sp = 0;
+
+        for (int code : actions) {
+            int node = free[--nofFree];
+
+            parent[node] = -1;
+
+            if (code < nums.length) {
+                kind[node]   = code;
+                leafOf[code] = node;
+            } else {
+                kind[node]       = code;
+                e1[node]         = stack[--sp];
+                e2[node]         = stack[--sp];
+                parent[e1[node]] = node;
+                parent[e2[node]] = node;
+            }
+
+            evaluate(node);
+            stack[sp++] = node;
+        }
+
+        root = stack[0];
+        size = actions.length;
+    }
+
+    /** Programme RPN de l'arbre courant. */
+    int[] actions() {
+        int[] actions = new int[size];
+        int[] n       = { 0 };
+
+        emit(root, actions, n);
+
+        return actions;
+    }
+
+    private void emit(int node, int[] actions, int[] n) {
+        if (kind[node] >= nums.length) {
+            emit(e2[node], actions, n);
+            emit(e1[node], actions, n);
+        }
+
+        actions[n[0]++] = kind[node];
+    }
+
+    /** Recalcule la valeur du noeud à partir de celles de ses fils. */
+    private void evaluate(int node) {
+        int code = kind[node];
+
+        if (code < nums.length) {
+            value[node] = chiffres.constant(code);
+            valid[node] = true;
+            return;
+        }
+
+        int  op = code - nums.length;
+        long a  = value[e1[node]];
+        long b  = value[e2[node]];
+
+        valid[node] = valid[e1[node]] && valid[e2[node]] && chiffres.allowed(op, a, b);
+        value[node] = valid[node] ? chiffres.apply(op, a, b) : 0;
+    }
+
+    /** Recalcule les valeurs du noeud et de ses ancêtres. */
+    private void refresh(int node) {
+        for (int n = node; n >= 0; n = parent[n]) {
+            evaluate(n);
+        }
+    }
+
+    /** Remplace le fils old de son parent (ou la racine) par node. */
+    private void replace(int old, int node) {
+        int p = parent[old];
+
+        parent[node] = p;
+
+        if (p < 0) {
+            root = node;
+        } else if (e1[p] == old) {
+            e1[p] = node;
+        } else {
+            e2[p] = node;
+        }
+    }
+
+    /** Noeud de l'arbre tiré au hasard, feuille ou non selon leaf. */
+    private int randomNode(boolean leaf) {
+        int node;
+
+        do {
+            node = random.nextInt(kind.length);
+        } while (kind[node] == FREE || (kind[node] < nums.length) != leaf);
+
+        return node;
+    }
+
+    /**
+     * Donne la constante c à la feuille leaf ; si une autre feuille
+     * porte déjà c, les deux feuilles échangent leurs constantes.
+     */
+    private void setConst(int leaf, int c) {
+        int old   = kind[leaf];
+        int other = leafOf[c];
+
+        leafOf[old] = -1;
+        kind[leaf]  = c;
+        leafOf[c]   = leaf;
+
+        if (other >= 0) {
+            kind[other]  = old;
+            leafOf[old]  = other;
+            refresh(other);
+        }
+
+        refresh(leaf);
+    }
+
+    /**
+     * Remplace le sous-arbre node par (c op node) si side vaut 0 (c au
+     * dessus de la pile), ou (node op c) sinon, c étant une constante
+     * inutilisée. Retourne le nouveau noeud interne.
+     */
+    private int grow(int node, int c, int op, int side) {
+        int leaf  = free[--nofFree];
+        int inner = free[--nofFree];
+
+        kind[leaf]   = c;
+        leafOf[c]    = leaf;
+        parent[leaf] = inner;
+        undoLeaf     = leaf;
+        evaluate(leaf);
+
+        kind[inner] = nums.length + op;
+        replace(node, inner);
+        parent[node] = inner;
+        e1[inner]    = side == 0 ? leaf : node;
+        e2[inner]    = side == 0 ? node : leaf;
+        size        += 2;
+
+        refresh(inner);
+
+        return inner;
+    }
+
+    /**
+     * Retire le noeud interne inner et sa feuille leaf, l'autre fils le
+     * remplaçant. Retourne cet autre fils.
+     */
+    private int shrink(int inner, int leaf) {
+        int kept = e1[inner] == leaf ? e2[inner] : e1[inner];
+
+        replace(inner, kept);
+        leafOf[kind[leaf]] = -1;
+        kind[leaf]         = FREE;
+        kind[inner]        = FREE;
+        free[nofFree++]    = inner;
+        free[nofFree++]    = leaf;
+        size              -= 2;
+
+        if (parent[kept] >= 0) {
+            refresh(parent[kept]);
+        }
+
+        return kept;
+    }
+
+    /** Constante inutilisée tirée au hasard, -1 si toutes sont utilisées. */
+    private int randomUnused() {
+        int nofUnused = nums.length - (size + 1) / 2;
+
+        if (nofUnused == 0) {
+            return -1;
+        }
+
+        int k = random.nextInt(nofUnused);
+
+        for (int c = 0; c < nums.length; c++) {
+            if (leafOf[c] < 0 && k-- == 0) {
+                return c;
+            }
+        }
+
+        return -1;
+    }
+
+    /** Applique une mutation tirée au hasard ; faux si aucune n'a pu l'être. */
+    private boolean mutate() {
+        move = random.nextInt(5);
+
+        int nofInner = size / 2;
+
+        switch (move) {
+        case OP:
+            if (nofInner == 0) {
+                return false;
+            }
+
+            undoNode = randomNode(false);
+            undoOp   = kind[undoNode];
+            kind[undoNode] = nums.length + (undoOp - nums.length + 1 + random.nextInt(Chiffres.NOF_OPS - 1))
+                % Chiffres.NOF_OPS;
+            refresh(undoNode);
+            return true;
+
+        case SWAP:
+            if (nofInner == 0) {
+                return false;
+            }
+
+            undoNode = randomNode(false);
+            swap(undoNode);
+            return true;
+
+        case CONST:
+            undoNode = randomNode(true);
+            undoArg  = kind[undoNode];
+            setConst(undoNode, random.nextInt(nums.length));
+            return true;
+
+        case GROW: {
+            int c = randomUnused();
+
+            if (c < 0) {
+                return false;
+            }
+
+            int node = randomNode(random.nextBoolean() || nofInner == 0);
+
+            undoNode = grow(node, c, random.nextInt(Chiffres.NOF_OPS), random.nextInt(2));
+            return true;
+        }
+
+        default: {
+            if (nofInner == 0) {
+                return false;
+            }
+
+            int inner = randomNode(false);
+            int leaf  = kind[e1[inner]] < nums.length && (kind[e2[inner]] >= nums.length || random.nextBoolean())
+                ? e1[inner] : e2[inner];
+
+            if (kind[leaf] >= nums.length) {
+                return false;
+            }
+
+            undoOp   = kind[inner] - nums.length;
+            undoSide = e1[inner] == leaf ? 0 : 1;
+            undoArg  = kind[leaf];
+            undoNode = shrink(inner, leaf);
+            return true;
+        }
+        }
+    }
+
+    private void swap(int node) {
+        int t = e1[node];
+
+        e1[node] = e2[node];
+        e2[node] = t;
+        refresh(node);
+    }
+
+    /** Défait la dernière mutation. */
+    private void undo() {
+        switch (move) {
+        case OP:
+            kind[undoNode] = undoOp;
+            refresh(undoNode);
+            break;
+
+        case SWAP:
+            swap(undoNode);
+            break;
+
+        case CONST:
+            setConst(undoNode, undoArg);
+            break;
+
+        case GROW:
+            shrink(undoNode, undoLeaf);
+            break;
+
+        default:
+            grow(undoNode, undoArg, undoOp, undoSide);
+            break;
+        }
+    }
+
+    /**
+     * Énergie d'un programme : distance à la cible, la longueur ne
+     * départageant que les programmes à même distance.
+     */
+    private double energy() {
+        return Math.abs((double) target - value[root]) + size / (2.0 * kind.length);
+    }
+
+    /** Conserve le programme courant s'il est meilleur que le meilleur connu. */
+    private boolean record() {
+        long distance = Math.abs(target - value[root]);
+
+        if (bestActions != null
+            && (distance > Math.abs(target - bestValue)
+                || (distance == Math.abs(target - bestValue) && size >= bestActions.length))) {
+            return false;
+        }
+
+        bestActions = actions();
+        bestValue   = value[root];
+
+        return true;
+    }
+
+    /**
+     * Recuit simulé jusqu'à la date end (System.nanoTime) ou jusqu'à
+     * atteindre la cible. Chaque descente part du meilleur programme
+     * connu (une constante au hasard pour la première), à une
+     * température initiale proportionnelle à sa distance. Chaque
+     * amélioration est transmise à listener (si non null). Sans
+     * constante, il n'y a aucun programme et la recherche s'arrête
+     * aussitôt.
+     */
+    public void run(long end, Consumer<ChiffresResult> listener) {
+        long start = System.nanoTime();
+
+        if (nums.length == 0) {
+            return;
+        }
+
+        if (bestActions == null) {
+            load(new int[] { random.nextInt(nums.length) });
+            record();
+            notify(listener, start);
+        }
+
+        while (Math.abs(target - bestValue) > 0 && System.nanoTime() < end) {
+            load(bestActions);
+
+            double current = energy();
+            double t0      = Math.max(1.0, Math.abs((double) target - bestValue) / 4);
+            double cooling = Math.pow(T_END / t0, 1.0 / ROUND);
+            double t       = t0;
+
+            for (int i = 0; i < ROUND; i++, t *= cooling) {
+                if ((i & 0xff) == 0 && System.nanoTime() >= end) {
+                    break;
+                }
+
+                iterations++;
+
+                if (!mutate()) {
+                    continue;
+                }
+
+                if (!valid[root]) {
+                    undo();
+                    continue;
+                }
+
+                double next = energy();
+
+                if (next <= current || random.nextDouble() < Math.exp((current - next) / t)) {
+                    current = next;
+
+                    if (record()) {
+                        notify(listener, start);
+
+                        if (bestValue == target) {
+                            break;
+                        }
+                    }
+                } else {
+                    undo();
+                }
+            }
+        }
+    }
+
+    /**
+     * Recherche en faisceau de largeur width : à chaque pas, chaque
+     * préfixe est étendu par toute constante inutilisée (une seule par
+     * valeur) et par tout opérateur applicable aux deux éléments du
+     * dessus de sa pile. Les préfixes menant au même état sont fusionnés
+     * et seuls les width de plus petit score (puis de plus petite pile)
+     * sont conservés. Tout préfixe dont la pile n'a qu'un élément est un
+     * programme complet, conservé comme par run s'il est meilleur. La
+     * recherche s'arrête sur un programme exact ou quand toutes les
+     * constantes ont été utilisées.
+     */
+    public void beam(int width) {
+        List<Prefix> layer = new ArrayList<>();
+
+        layer.add(new Prefix(new int[0], new long[0], 0, target));
+
+        for (int step = 0; step < kind.length && !layer.isEmpty(); step++) {
+            HashMap<String, Prefix> next = new HashMap<>();
+
+            for (Prefix prefix : layer) {
+                int sp = prefix.stack.length;
+
+                for (int c = 0; c < nums.length; c++) {
+                    if ((prefix.used >> c & 1) != 0 || !firstUnused(prefix.used, c)) {
+                        continue;
+                    }
+
+                    long[] stack = Arrays.copyOf(prefix.stack, sp + 1);
+
+                    stack[sp] = chiffres.constant(c);
+                    extend(next, prefix, c, stack, prefix.used | 1L << c);
+                }
+
+                for (int op = 0; sp >= 2 && op < Chiffres.NOF_OPS; op++) {
+                    long a = prefix.stack[sp - 1];
+                    long b = prefix.stack[sp - 2];
+
+                    iterations++;
+
+                    if (!chiffres.allowed(op, a, b)) {
+                        continue;
+                    }
+
+                    long[] stack = Arrays.copyOf(prefix.stack, sp - 1);
+
+                    stack[sp - 2] = chiffres.apply(op, a, b);
+                    extend(next, prefix, nums.length + op, stack, prefix.used);
+                }
+            }
+
+            for (Prefix prefix : next.values()) {
+                if (prefix.stack.length == 1) {
+                    record(prefix.actions, prefix.stack[0]);
+                }
+            }
+
+            if (bestActions != null && bestValue == target) {
+                return;
+            }
+
+            layer = new ArrayList<>(next.values());
+            layer.sort(Comparator.comparingLong((Prefix p) -> p.score)
+                       .thenComparingInt(p -> p.stack.length));
+
+            if (layer.size() > width) {
+                layer = layer.subList(0, width);
+            }
+        }
+    }
+
+    /**
+     * Vrai ssi nums[c] est la première constante inutilisée de sa
+     * valeur : pousser l'une ou l'autre mène au même état.
+     */
+    private boolean firstUnused(long used, int c) {
+        for (int d = 0; d < c; d++) {
+            if ((used >> d & 1) == 0 && nums[d] == nums[c]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Ajoute à next le préfixe prefix suivi de l'action code. */
+    private void extend(HashMap<String, Prefix> next, Prefix prefix, int code, long[] stack, long used) {
+        int[] actions = Arrays.copyOf(prefix.actions, prefix.actions.length + 1);
+
+        actions[prefix.actions.length] = code;
+
+        Prefix extended = new Prefix(actions, stack, used, target);
+
+        next.putIfAbsent(extended.key(), extended);
+    }
+
+    /** Conserve le programme actions, de valeur value, s'il est meilleur. */
+    private void record(int[] actions, long value) {
+        long distance = Math.abs(target - value);
+
+        if (bestActions == null
+            || distance < Math.abs(target - bestValue)
+            || (distance == Math.abs(target - bestValue) && actions.length < bestActions.length)) {
+            bestActions = actions;
+            bestValue   = value;
+        }
+    }
+
+    private void notify(Consumer<ChiffresResult> listener, long start) {
+        if (listener != null) {
+            Status status = bestValue == target ? Status.SATISFIABLE : Status.UNKNOWN;
+
+            listener.accept(new ChiffresResult(nums, target, status, status, bestActions, bestValue,
+                                               0, System.nanoTime() - start, 0));
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package fr.n7.smt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.microsoft.z3.Status;
+
+/**
+ * Table précalculée des meilleurs programmes du jeu télévisé : 6
+ * plaques tirées parmi les 24 (1 à 10 en double, 25, 50, 75 et 100),
+ * cibles de 100 à 999, règles du jeu (valeurs intermédiaires
+ * strictement positives, divisions exactes, chaque plaque au plus une
+ * fois).
+ *
+ * Pour chaque tirage canonique (multi-ensemble trié, 13243 en tout) et
+ * chaque cible, la table contient le plus court programme RPN atteignant
+ * la cible, ou à défaut le plus proche (puis le plus court) : les
+ * tirages sont énumérés en arithmétique native, en parallèle (fork/join),
+ * par programmation dynamique sur les sous-ensembles de plaques.
+ *
+ * Le fichier est un entête suivi d'un enregistrement de RECORD_SIZE
+ * octets par couple (tirage, cible), à la position
+ * (rang du tirage * nombre de cibles + cible - TARGET_MIN) : le rang est
+ * l'indice du vecteur des multiplicités des valeurs dans l'énumération
+ * lexicographique des tirages (voir rank). Une requête est donc une
+ * lecture à position calculée dans le fichier projeté en mémoire.
+ *
+ * Un enregistrement code sur 48 bits la longueur du programme (4 bits,
+ * 0 si aucun) puis ses actions (4 bits chacune) : indice de la plaque
+ * dans le tirage trié (0 à 5), ou NOF_PLATES + code d'opérateur (voir
+ * Chiffres.MUL).
+ */
+public class ChiffresTable implements AutoCloseable {
+
+    /** Valeurs distinctes des plaques et leur nombre d'exemplaires. */
+    static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 25, 50, 75, 100 };
+    static final int[] COPIES = { 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1 };
+
+    static final int NOF_PLATES = 6;
+    static final int TARGET_MIN = 100;
+    static final int TARGET_MAX = 999;
+    static final int NOF_TARGETS = TARGET_MAX - TARGET_MIN + 1;
+
+    static final int RECORD_SIZE = 6;
+
+    /** Entête : "CHTB", nombre de plaques, de tirages, cibles min et max. */
+    static final int MAGIC       = 0x43485442;
+    static final int HEADER_SIZE = 20;
+
+    /**
+     * ways[i][r] : nombre de façons de choisir r plaques parmi les
+     * valeurs VALUES[i..], pour le calcul des rangs.
+     */
+    private static final long[][] WAYS = new long[VALUES.length + 1][NOF_PLATES + 1];
+
+    static {
+        WAYS[VALUES.length][0] = 1;
+
+        for (int i = VALUES.length - 1; i >= 0; i--) {
+            for (int r = 0; r <= NOF_PLATES; r++) {
+                for (int k = 0; k <= Math.min(COPIES[i], r); k++) {
+                    WAYS[i][r] += WAYS[i + 1][r - k];
+                }
+            }
+        }
+    }
+
+    /** Nombre de tirages canoniques. */
+    static final int NOF_DRAWS = (int) WAYS[0][NOF_PLATES];
+
+    private final FileChannel      channel;
+    private final MappedByteBuffer buffer;
+
+    /** Ouvre la table stockée dans le fichier path, en lecture seule. */
+    public ChiffresTable(String path) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (buffer.capacity() < HEADER_SIZE
+            || buffer.getInt(0) != MAGIC
+            || buffer.getInt(4) != NOF_PLATES
+            || buffer.getInt(8) != NOF_DRAWS
+            || buffer.getInt(12) != TARGET_MIN
+            || buffer.getInt(16) != TARGET_MAX
+            || buffer.capacity() != HEADER_SIZE + (long) NOF_DRAWS * NOF_TARGETS * RECORD_SIZE) {
+            channel.close();
+            throw new IOException(path + ": not a Chiffres table");
+        }
+    }
+
+    /**
+     * Multiplicités des valeurs de VALUES dans nums, ou null si nums
+     * n'est pas un tirage du jeu.
+     */
+    static int[] counts(int[] nums) {
+        if (nums.length != NOF_PLATES) {
+            return null;
+        }
+
+        int[] counts = new int[VALUES.length];
+
+        for (int num : nums) {
+            int i = Arrays.binarySearch(VALUES, num);
+
+            if (i < 0 || ++counts[i] > COPIES[i]) {
+                return null;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Rang du tirage de multiplicités counts : nombre de tirages dont le
+     * vecteur des multiplicités est lexicographiquement plus grand
+     * (énumération par multiplicité décroissante de 1, puis de 2, ...).
+     */
+    static int rank(int[] counts) {
+        long rank = 0;
+        int  left = NOF_PLATES;
+
+        for (int i = 0; i < VALUES.length; i++) {
+            for (int k = Math.min(COPIES[i], left); k > counts[i]; k--) {
+                rank += WAYS[i + 1][left - k];
+            }
+
+            left -= counts[i];
+        }
+
+        return (int) rank;
+    }
+
+    /** Tirage trié de rang donné (inverse de rank). */
+    static int[] unrank(int rank) {
+        int[] draw = new int[NOF_PLATES];
+        int   n    = 0;
+        int   left = NOF_PLATES;
+
+        for (int i = 0; i < VALUES.length; i++) {
+            int k = Math.min(COPIES[i], left);
+
+            while (rank >= WAYS[i + 1][left - k]) {
+                rank -= WAYS[i + 1][left - k];
+                k--;
+            }
+
+            for (int j = 0; j < k; j++) {
+                draw[n++] = VALUES[i];
+            }
+
+            left -= k;
+        }
+
+        return draw;
+    }
+
+    /**
+     * Meilleur programme de la table pour le tirage nums (dans un ordre
+     * quelconque) et la cible target, exprimé sur les indices de nums ;
+     * null si nums n'est pas un tirage du jeu ou target hors de
+     * TARGET_MIN..TARGET_MAX. Le status (exact et final) est SATISFIABLE
+     * si la cible est atteinte, UNSATISFIABLE sinon : la cible est alors
+     * inaccessible selon les règles du jeu, et le programme est le plus
+     * proche.
+     */
+    public ChiffresResult get(int[] nums, int target) {
+        int[] counts = counts(nums);
+
+        if (counts == null || target < TARGET_MIN || target > TARGET_MAX) {
+            return null;
+        }
+
+        long offset = HEADER_SIZE + ((long) rank(counts) * NOF_TARGETS + target - TARGET_MIN) * RECORD_SIZE;
+        long record = 0;
+
+        for (int b = RECORD_SIZE - 1; b >= 0; b--) {
+            record = (record << 8) | (buffer.get((int) offset + b) & 0xff);
+        }
+
+        int[]     draw    = unrank(rank(counts));
+        int[]     actions = new int[(int) (record & 0xf)];
+        boolean[] used    = new boolean[nums.length];
+
+        for (int step = 0; step < actions.length; step++) {
+            int code = (int) (record >>> (4 + 4 * step)) & 0xf;
+
+            if (code >= NOF_PLATES) {
+                actions[step] = nums.length + code - NOF_PLATES;
+                continue;
+            }
+
+            int i = 0;
+
+            while (used[i] || nums[i] != draw[code]) {
+                i++;
+            }
+
+            used[i]       = true;
+            actions[step] = i;
+        }
+
+        long   value  = evaluate(nums, actions);
+        Status status = value == target ? Status.SATISFIABLE : Status.UNSATISFIABLE;
+
+        return new ChiffresResult(nums, target, status, status, actions, value, 0, 0, 0);
+    }
+
+    /** Valeur du programme RPN actions sur les constantes nums. */
+    static long evaluate(int[] nums, int[] actions) {
+        long[] stack = new long[actions.length];
+        int    sp    = 0;
+
+        for (int code : actions) {
+            if (code < nums.length) {
+                stack[sp++] = nums[code];
+                continue;
+            }
+
+            long e1 = stack[--sp];
+            long e2 = stack[--sp];
+
+            switch (code - nums.length) {
+            case Chiffres.MUL: stack[sp++] = e1 * e2; break;
+            case Chiffres.DIV: stack[sp++] = e1 / e2; break;
+            case Chiffres.ADD: stack[sp++] = e1 + e2; break;
+            default:           stack[sp++] = e1 - e2; break;
+            }
+        }
+
+        return stack[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Valeurs atteignables avec exactement les plaques du masque mask du
+     * tirage draw, pour tous les masques : reachable[mask] associe à
+     * chaque valeur une façon de l'obtenir, codée par
+     * (op << 38) | (masque de e1 << 32) | e1, le résultat étant e1 op e2
+     * où e2 est obtenu avec les plaques restantes du masque.
+     */
+    static Map<Integer, Long>[] reachable(int[] draw) {
+        int                  full      = (1 << draw.length) - 1;
+        @SuppressWarnings("unchecked")
+        Map<Integer, Long>[] reachable = new Map[full + 1];
+
+        for (int mask = 1; mask <= full; mask++) {
+            Map<Integer, Long> values = new HashMap<>();
+
+            reachable[mask] = values;
+
+            if (Integer.bitCount(mask) == 1) {
+                values.put(draw[Integer.numberOfTrailingZeros(mask)], -1L);
+                continue;
+            }
+
+            // chaque partition {a, b} du masque une seule fois : a contient le plus petit bit
+            int low = mask & -mask;
+
+            for (int a = (mask - 1) & mask; a > 0; a = (a - 1) & mask) {
+                int b = mask ^ a;
+
+                if ((a & low) == 0 || b == 0) {
+                    continue;
+                }
+
+                for (int x : reachable[a].keySet()) {
+                    for (int y : reachable[b].keySet()) {
+                        combine(values, x, a, y, b);
+                        combine(values, y, b, x, a);
+                    }
+                }
+            }
+        }
+
+        return reachable;
+    }
+
+    /**
+     * Ajoute à values les résultats de "x op y" (x obtenu avec le masque
+     * maskX) selon les règles du jeu, sans les opérations neutres (qui
+     * ne donnent jamais un programme plus court). L'addition et la
+     * multiplication, commutatives, ne sont ajoutées que pour x >= y.
+     */
+    private static void combine(Map<Integer, Long> values, int x, int maskX, int y, int maskY) {
+        long left = ((long) maskX << 32) | x;
+
+        if (x >= y) {
+            values.putIfAbsent(x + y, ((long) Chiffres.ADD << 38) | left);
+
+            if (y > 1 && (long) x * y <= Integer.MAX_VALUE) {
+                values.putIfAbsent(x * y, ((long) Chiffres.MUL << 38) | left);
+            }
+        }
+
+        if (x > y && x - y != y) {
+            values.putIfAbsent(x - y, ((long) Chiffres.SUB << 38) | left);
+        }
+
+        if (y > 1 && x % y == 0 && x / y != y) {
+            values.putIfAbsent(x / y, ((long) Chiffres.DIV << 38) | left);
+        }
+    }
+
+    /**
+     * Programme RPN (codes d'enregistrement) calculant value avec les
+     * plaques du masque mask.
+     */
+    static void program(Map<Integer, Long>[] reachable, int mask, int value, int[] out, int[] length) {
+        long how = reachable[mask].get(value);
+
+        if (how < 0) {
+            out[length[0]++] = Integer.numberOfTrailingZeros(mask);
+            return;
+        }
+
+        int op    = (int) (how >>> 38);
+        int maskX = (int) (how >>> 32) & 0x3f;
+        int x     = (int) how;
+        int y;
+
+        switch (op) {
+        case Chiffres.MUL: y = value / x; break;
+        case Chiffres.DIV: y = x / value; break;
+        case Chiffres.ADD: y = value - x; break;
+        default:           y = x - value; break;
+        }
+
+        // e2 (y) d'abord, e1 (x) en dessus de pile
+        program(reachable, mask ^ maskX, y, out, length);
+        program(reachable, maskX, x, out, length);
+        out[length[0]++] = NOF_PLATES + op;
+    }
+
+    /** Enregistrements des NOF_TARGETS cibles du tirage draw. */
+    static long[] records(int[] draw) {
+        Map<Integer, Long>[] reachable = reachable(draw);
+
+        // plus petit masque (en nombre de plaques) atteignant chaque valeur
+        Map<Integer, Integer> best = new HashMap<>();
+
+        for (int size = 1; size <= NOF_PLATES; size++) {
+            for (int mask = 1; mask < reachable.length; mask++) {
+                if (Integer.bitCount(mask) == size) {
+                    for (int value : reachable[mask].keySet()) {
+                        best.putIfAbsent(value, mask);
+                    }
+                }
+            }
+        }
+
+        long[] records = new long[NOF_TARGETS];
+        int[]  out     = new int[2 * NOF_PLATES - 1];
+        int[]  length  = new int[1];
+
+        for (int t = TARGET_MIN; t <= TARGET_MAX; t++) {
+            int value = -1;
+
+            for (int d = 0; value < 0; d++) {
+                Integer below = best.get(t - d);
+                Integer above = best.get(t + d);
+
+                if (below != null && (above == null || Integer.bitCount(below) <= Integer.bitCount(above))) {
+                    value = t - d;
+                } else if (above != null) {
+                    value = t + d;
+                }
+            }
+
+            length[0] = 0;
+            program(reachable, best.get(value), value, out, length);
+
+            long record = length[0];
+
+            for (int step = 0; step < length[0]; step++) {
+                record |= (long) out[step] << (4 + 4 * step);
+            }
+
+            records[t - TARGET_MIN] = record;
+        }
+
+        return records;
+    }
+
+    /** Calcule et écrit les enregistrements des tirages de rang lo à hi - 1. */
+    private static class Build extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 16;
+
+        private final ByteBuffer buffer;
+        private final int        lo;
+        private final int        hi;
+
+        Build(ByteBuffer _buffer, int _lo, int _hi) {
+            buffer = _buffer;
+            lo     = _lo;
+            hi     = _hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > THRESHOLD) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Build(buffer, lo, mid), new Build(buffer, mid, hi));
+                return;
+            }
+
+            for (int rank = lo; rank < hi; rank++) {
+                long[] records = records(unrank(rank));
+                long   offset  = HEADER_SIZE + (long) rank * NOF_TARGETS * RECORD_SIZE;
+
+                for (int t = 0; t < NOF_TARGETS; t++) {
+                    for (int b = 0; b < RECORD_SIZE; b++) {
+                        buffer.put((int) offset + t * RECORD_SIZE + b, (byte) (records[t] >>> (8 * b)));
+                    }
+                }
+            }
+        }
+    }
+
+    /** Construit la table dans le fichier path avec parallelism threads. */
+    public static void build(String path, int parallelism) throws IOException {
+        long size = HEADER_SIZE + (long) NOF_DRAWS * NOF_TARGETS * RECORD_SIZE;
+
+        try (FileChannel out = FileChannel.open(Paths.get(path),
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            new ForkJoinPool(parallelism).invoke(new Build(buffer, 0, NOF_DRAWS));
+
+            buffer.putInt(4, NOF_PLATES);
+            buffer.putInt(8, NOF_DRAWS);
+            buffer.putInt(12, TARGET_MIN);
+            buffer.putInt(16, TARGET_MAX);
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Usage : ChiffresTable build file [threads]
+     *       | ChiffresTable query file target n1 ... n6
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("build")) {
+            int  threads = args.length > 2 ? Integer.parseInt(args[2])
+                                           : Runtime.getRuntime().availableProcessors();
+            long start   = System.nanoTime();
+
+            build(args[1], threads);
+            System.out.printf("%d draws x %d targets in %d ms%n", NOF_DRAWS, NOF_TARGETS,
+                              (System.nanoTime() - start) / 1_000_000);
+            return;
+        }
+
+        if (args.length == 3 + NOF_PLATES && args[0].equals("query")) {
+            int[] nums = new int[NOF_PLATES];
+
+            for (int i = 0; i < NOF_PLATES; i++) {
+                nums[i] = Integer.parseInt(args[3 + i]);
+            }
+
+            try (ChiffresTable table = new ChiffresTable(args[1])) {
+                long           start  = System.nanoTime();
+                ChiffresResult result = table.get(nums, Integer.parseInt(args[2]));
+
+                System.out.println(result + " in " + (System.nanoTime() - start) / 1000 + " us");
+            }
+            return;
+        }
+
+        System.out.println("usage: ChiffresTable build <file> [threads]");
+        System.out.println("       ChiffresTable query <file> <target> <n1> ... <n6>");
+    }
+}